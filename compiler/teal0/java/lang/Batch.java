@@ -0,0 +1,313 @@
+package lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import lang.ast.CompilerError;
+import lang.ir.*;
+import lang.common.Debug;
+
+/**
+ * Batch mode: compile and run many Teal programs in one JVM.
+ *
+ * Each job names a module, its arguments and optionally a file for its input.
+ * Jobs are compiled one after another on the calling thread, since attribute
+ * evaluation in the compiler is not thread-safe, and each compiled program is
+ * then run on a pool of worker threads while the next job compiles.  Every job
+ * has its own IR tree, its own I/O context, which keeps the output in memory,
+ * and its own buffer for the interpreter's debug log, so runs don't share any
+ * state.
+ */
+public final class Batch {
+	/**
+	 * One program run, as listed in a manifest
+	 */
+	public static final class Job {
+		final int number; // line number in the manifest
+		final String module;
+		final List<String> args;
+		final String inputFile; // null: no input
+
+		public Job(int number, String module, List<String> args, String inputFile) {
+			this.number = number;
+			this.module = module;
+			this.args = args;
+			this.inputFile = inputFile;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public String getModule() {
+			return module;
+		}
+
+		public List<String> getArgs() {
+			return args;
+		}
+
+		public String getInputFile() {
+			return inputFile;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(module);
+			for (String arg : args) {
+				sb.append(' ').append(arg);
+			}
+			if (inputFile != null) {
+				sb.append(" < ").append(inputFile);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The outcome of a job
+	 */
+	public static final class JobResult {
+		final Job job;
+		final CharSequence output;
+		final String log;
+		final IRValue returnValue;
+		final String error; // null: success
+		final long compileNanos;
+		final long runNanos;
+		final long steps;
+
+		JobResult(Job job, CharSequence output, String log, IRValue returnValue, String error,
+			  long compileNanos, long runNanos, long steps) {
+			this.job = job;
+			this.output = output;
+			this.log = log;
+			this.returnValue = returnValue;
+			this.error = error;
+			this.compileNanos = compileNanos;
+			this.runNanos = runNanos;
+			this.steps = steps;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * Everything that the program printed
+		 */
+		public CharSequence getOutput() {
+			return output;
+		}
+
+		/**
+		 * Debug output of the interpreter (see lang.common.Debug)
+		 */
+		public String getLog() {
+			return log;
+		}
+
+		public IRValue getReturnValue() {
+			return returnValue;
+		}
+
+		/**
+		 * Why the job failed, or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		public long getCompileNanos() {
+			return compileNanos;
+		}
+
+		public long getRunNanos() {
+			return runNanos;
+		}
+
+		public long getSteps() {
+			return steps;
+		}
+
+		/**
+		 * Print a header with the job and its timing, then its output and
+		 * return value (as for a single run) or error, then its debug log
+		 */
+		public void print(PrintStream out) {
+			out.println(String.format("==> %d: %s (%s, compiled in %.3f ms, ran in %.3f ms, %d steps)",
+						  job.number, job, isSuccess() ? "ok" : "failed",
+						  compileNanos / 1e6, runNanos / 1e6, steps));
+			out.append(output);
+			if (isSuccess()) {
+				out.println("" + returnValue);
+			} else {
+				out.println(error);
+			}
+			out.print(log);
+		}
+	}
+
+	private final List<String> importPaths;
+	private final int threads;
+	private final Supplier<InterpreterConfig> configs;
+
+	/**
+	 * @param threads Maximum number of concurrent runs
+	 * @param configs Settings for each run; must return a fresh configuration on each call
+	 */
+	public Batch(List<String> importPaths, int threads, Supplier<InterpreterConfig> configs) {
+		this.importPaths = importPaths;
+		this.threads = threads;
+		this.configs = configs;
+	}
+
+	/**
+	 * Read a manifest: one job per line, with the module, its arguments and
+	 * optionally "< FILE" for the input, separated by whitespace.  Empty lines
+	 * and lines starting with '#' are skipped.  Relative paths are relative to
+	 * the directory of the manifest.
+	 */
+	public static List<Job> parseManifest(File manifest) throws IOException {
+		File dir = manifest.getAbsoluteFile().getParentFile();
+		List<Job> jobs = new ArrayList<>();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(manifest.toPath(), Charset.defaultCharset())) {
+			++lineNumber;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			List<String> words = new ArrayList<>(Arrays.asList(line.split("\\s+")));
+			String inputFile = null;
+			int redirect = words.indexOf("<");
+			if (redirect >= 0) {
+				if (redirect != words.size() - 2) {
+					throw new IOException("Line " + lineNumber + ": expected one input file after '<'");
+				}
+				inputFile = resolve(dir, words.get(redirect + 1));
+				words = words.subList(0, redirect);
+			}
+			if (words.isEmpty()) {
+				throw new IOException("Line " + lineNumber + ": missing module");
+			}
+			jobs.add(new Job(lineNumber, resolve(dir, words.get(0)),
+					 new ArrayList<>(words.subList(1, words.size())), inputFile));
+		}
+		return jobs;
+	}
+
+	private static String resolve(File dir, String path) {
+		File f = new File(path);
+		if (f.isAbsolute() || dir == null) {
+			return path;
+		}
+		return new File(dir, path).getPath();
+	}
+
+	/**
+	 * Compile and run all jobs
+	 *
+	 * @return The results, in the order of the jobs
+	 */
+	public List<JobResult> run(List<Job> jobs) {
+		AtomicInteger workers = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "teal-batch-" + workers.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		try {
+			List<Future<JobResult>> pending = new ArrayList<>();
+			for (Job job : jobs) {
+				long start = System.nanoTime();
+				List<CompilerError> errors = new ArrayList<>();
+				IRProgram program = Compiler.compileToIR(job.module, importPaths, errors);
+				long compileNanos = System.nanoTime() - start;
+				if (program == null) {
+					StringBuilder message = new StringBuilder("Compilation failed:");
+					for (CompilerError e : errors) {
+						message.append('\n').append(e);
+					}
+					pending.add(CompletableFuture.completedFuture(
+							    new JobResult(job, "", "", null, message.toString(), compileNanos, 0, 0)));
+				} else {
+					pending.add(pool.submit(() -> runJob(job, program, compileNanos)));
+				}
+			}
+
+			List<JobResult> results = new ArrayList<>();
+			for (int i = 0; i < jobs.size(); ++i) {
+				try {
+					results.add(pending.get(i).get());
+				} catch (ExecutionException | InterruptedException e) {
+					results.add(new JobResult(jobs.get(i), "", "", null,
+								  "Internal error: " + e, 0, 0, 0));
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private JobResult runJob(Job job, IRProgram program, long compileNanos) {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		Debug.setOutput(new PrintStream(log, true));
+		long start = System.nanoTime();
+		IOContext io = null;
+		IRValue returnValue = null;
+		String error = null;
+		long steps = 0;
+		try {
+			io = new IOContext(job.inputFile == null ? new InputChannel("") : InputChannel.fromFile(Paths.get(job.inputFile)),
+					   OutputChannel.capture());
+			IRResult result = program.eval(Compiler.parseArgs(job.args), configs.get().setIO(io));
+			if (result == null) {
+				error = "No main function";
+			} else {
+				returnValue = result.getReturnValue();
+				steps = result.getSteps();
+			}
+		} catch (BudgetExhaustedException e) {
+			error = "Error while interpreting program: " + e.toString();
+			steps = e.getPartialResult().getSteps();
+		} catch (InterpreterException | RuntimeException | StackOverflowError e) {
+			error = "Error while interpreting program: " + e.toString();
+		} catch (IOException e) {
+			error = "Can't read input file '" + job.inputFile + "': " + e.getMessage();
+		} finally {
+			Debug.setOutput(System.out);
+		}
+		long runNanos = System.nanoTime() - start;
+		CharSequence output = "";
+		if (io != null) {
+			output = io.getOutput();
+			try {
+				io.close();
+			} catch (IOException e) {
+				// only the input file remains open, and we're done with it
+			}
+		}
+		return new JobResult(job, output, log.toString(), returnValue, error, compileNanos, runNanos, steps);
+	}
+}
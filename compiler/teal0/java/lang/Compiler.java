@@ -35,6 +35,7 @@ import lang.ir.*;
 import lang.common.SourceLocation;
 import lang.common.WithSourceLocation;
 import lang.common.Report;
+import lang.common.Debug;
 
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
@@ -106,9 +107,19 @@ public class Compiler {
 
 	// Interpret program with the give parameters
 	public static void interpret(IRProgram p, List<String> strings) {
+		interpret(p, strings, ExecutionMode.TREE);
+	}
+
+	// Interpret program with the give parameters, using the given execution engine
+	public static void interpret(IRProgram p, List<String> strings, ExecutionMode mode) {
+		interpret(p, strings, new InterpreterConfig(mode));
+	}
+
+	// Interpret program with the give parameters and interpreter settings
+	public static void interpret(IRProgram p, List<String> strings, InterpreterConfig config) {
 		ArrayList<IRValue> args = parseArgs(strings);
 		try {
-			IRValue ret = p.eval(args).getReturnValue();
+			IRValue ret = p.eval(args, config).getReturnValue();
 			System.out.println("" + ret);
 		} catch (InterpreterException e) {
 			System.err.println("Error while interpreting program: " + e.toString());
@@ -191,7 +202,8 @@ public class Compiler {
 			IRGEN,
 			ATTR_EXTRACT,
 			ATTR_DIFF,
-			INTERP
+			INTERP,
+			BATCH
 		}
 
 		Action action = CODE_PROBER_MODE ? Action.CODEPROBER : Action.INTERP;
@@ -202,6 +214,20 @@ public class Compiler {
 		String[] attributesToExtract;
 		List<String> importPaths;
 		List<String> progArgs; // arguments for the interpreted program
+		ExecutionMode engine = ExecutionMode.TREE;
+		int maxStackDepth = 0; // 0: unlimited
+		long maxSteps = 0; // 0: unlimited
+		long timeLimit = 0; // in ms; 0: unlimited
+		long maxHeap = 0; // in bytes; 0: unlimited
+		int memoCapacity = 0; // results cached per memoized function; 0: no memoization
+		List<String> assumePure = new ArrayList<>(); // functions to memoize even if not shown pure
+		String traceFile; // if set, record an execution trace and write it here
+		String profilePrefix; // if set, profile the run and write the results to files with this prefix
+		String coveragePrefix; // if set, count executed lines and write the results to files with this prefix
+		String snapshotFile; // if set, start from this heap snapshot, if it exists, and let checkpoint() write it
+		String manifestFile; // batch mode: jobs to run
+		int batchThreads = Runtime.getRuntime().availableProcessors(); // batch mode: number of concurrent runs
+		boolean printSourceLocations = false;
 
 		PrintStream outStream = null;
 
@@ -300,6 +326,8 @@ public class Compiler {
 			.desc("Generate IR code and print it out.").build();
 		Option run = Option.builder("r").longOpt("run").hasArg(false)
 			.desc("Interpret the IR code.").build();
+		Option batch = Option.builder("b").longOpt("batch").hasArg().argName("MANIFEST")
+			.desc("Compile and run all jobs in MANIFEST concurrently, one per line: MODULE ARGS... [< INPUTFILE].").build();
 		Option codeprober = Option.builder("D").longOpt("codeprober").hasArg(false)
 			.desc("Computer information used by CodeProber (to be used when calling from CodeProber only)").build();
 		Option attr_extract = Option.builder("e").longOpt("attr-extract").hasArg(true)
@@ -318,6 +346,7 @@ public class Compiler {
 
 		OptionGroup action = new OptionGroup()
 			.addOption(run)
+			.addOption(batch)
 			.addOption(check)
 			.addOption(codeprober)
 			.addOption(parse)
@@ -347,6 +376,30 @@ public class Compiler {
 				   .desc("Print out all reports on the source AST.").build())
 			.addOption(Option.builder("I").longOpt("reports-ir").hasArg(false)
 				   .desc("Print out all reports on the IR.").build())
+			.addOption(Option.builder("E").longOpt("engine").hasArg().argName("ENGINE")
+				   .desc("Execution engine for interpreting the IR: tree (default), decoded, closure, tiered, jit or stack.").build())
+			.addOption(Option.builder().longOpt("max-depth").hasArg().argName("N")
+				   .desc("Maximum number of nested calls with the stack engine (default: limited by the heap).").build())
+			.addOption(Option.builder().longOpt("max-steps").hasArg().argName("N")
+				   .desc("Stop the program after N steps, i.e., calls and loop iterations (default: unlimited).").build())
+			.addOption(Option.builder().longOpt("time-limit").hasArg().argName("MS")
+				   .desc("Stop the program after MS milliseconds (default: unlimited).").build())
+			.addOption(Option.builder().longOpt("max-heap").hasArg().argName("BYTES")
+				   .desc("Stop the program once it has allocated about BYTES bytes (default: unlimited).").build())
+			.addOption(Option.builder().longOpt("memoize").hasArg().argName("N")
+				   .desc("Cache up to N results of each pure function called with integers and strings (default: 0, no caching).").build())
+			.addOption(Option.builder().longOpt("assume-pure").hasArg().argName("NAMES")
+				   .desc("Memoize the functions in the comma-separated list NAMES as if they were pure (requires --memoize).").build())
+			.addOption(Option.builder("j").longOpt("jobs").hasArg().argName("N")
+				   .desc("Number of programs to run concurrently in batch mode (default: number of processors).").build())
+			.addOption(Option.builder("T").longOpt("trace").hasArg().argName("FILE")
+				   .desc("Record the most recent interpreter events and write them to FILE (NDJSON if FILE ends in .ndjson, binary otherwise).").build())
+			.addOption(Option.builder().longOpt("profile").hasArg().argName("PREFIX")
+				   .desc("Profile the program with the tree engine; write collapsed stacks for flame graphs to PREFIX.folded and a table of functions, blocks and calls to PREFIX.tsv.  Tail calls are not eliminated, so each recursive call counts.").build())
+			.addOption(Option.builder().longOpt("coverage").hasArg().argName("PREFIX")
+				   .desc("Count executed source lines with the tree engine; write them in lcov format to PREFIX.info and as an annotated listing to PREFIX.lines.").build())
+			.addOption(Option.builder().longOpt("snapshot").hasArg().argName("FILE")
+				   .desc("Start with the global variables saved in FILE, if it exists; let checkpoint() save them to FILE.").build())
 			;
 
 		try {
@@ -363,7 +416,12 @@ public class Compiler {
 			}
 
 			// Assume that the user wants us to run the compiler
-			if (cmd.getArgs().length < 1) {
+			if (cmd.hasOption("b")) {
+				// the manifest names the modules
+				ret.action = CmdLineOpts.Action.BATCH;
+				ret.manifestFile = cmd.getOptionValue("b");
+				ret.setProgArgs(null);
+			} else if (cmd.getArgs().length < 1) {
 				System.err.println("Missing MODULE argument.");
 				System.exit(1);
 			} else {
@@ -376,7 +434,9 @@ public class Compiler {
 				}
 				ret.setProgArgs(teal_code_args);
 			}
-			ret.inputFile = cmd.getArgs()[0];
+			if (cmd.getArgs().length > 0) {
+				ret.inputFile = cmd.getArgs()[0];
+			}
 
 			if (cmd.hasOption("p")) {
 				ret.action = CmdLineOpts.Action.PARSE;
@@ -412,10 +472,97 @@ public class Compiler {
 				ret.attributesToExtract = cmd.getOptionValue("e").split("/");
 			}
 			if (cmd.hasOption("s")) {
-				IRProgram.printSourceLocations = true;
+				ret.printSourceLocations = true;
 				Program.printSourceLocation = true;
 			}
 
+			if (cmd.hasOption("E")) {
+				try {
+					ret.engine = ExecutionMode.valueOf(cmd.getOptionValue("E").toUpperCase());
+				} catch (IllegalArgumentException exn) {
+					System.err.println("Unknown execution engine '" + cmd.getOptionValue("E") + "'.");
+					System.exit(1);
+				}
+			}
+
+			if (cmd.hasOption("max-depth")) {
+				try {
+					ret.maxStackDepth = Integer.parseInt(cmd.getOptionValue("max-depth"));
+				} catch (NumberFormatException exn) {
+					System.err.println("Invalid maximum call depth '" + cmd.getOptionValue("max-depth") + "'.");
+					System.exit(1);
+				}
+			}
+
+			if (cmd.hasOption("max-steps")) {
+				try {
+					ret.maxSteps = Long.parseLong(cmd.getOptionValue("max-steps"));
+				} catch (NumberFormatException exn) {
+					System.err.println("Invalid maximum number of steps '" + cmd.getOptionValue("max-steps") + "'.");
+					System.exit(1);
+				}
+			}
+
+			if (cmd.hasOption("time-limit")) {
+				try {
+					ret.timeLimit = Long.parseLong(cmd.getOptionValue("time-limit"));
+				} catch (NumberFormatException exn) {
+					System.err.println("Invalid time limit '" + cmd.getOptionValue("time-limit") + "'.");
+					System.exit(1);
+				}
+			}
+
+			if (cmd.hasOption("max-heap")) {
+				try {
+					ret.maxHeap = Long.parseLong(cmd.getOptionValue("max-heap"));
+				} catch (NumberFormatException exn) {
+					System.err.println("Invalid heap limit '" + cmd.getOptionValue("max-heap") + "'.");
+					System.exit(1);
+				}
+			}
+
+			if (cmd.hasOption("memoize")) {
+				try {
+					ret.memoCapacity = Integer.parseInt(cmd.getOptionValue("memoize"));
+				} catch (NumberFormatException exn) {
+					System.err.println("Invalid cache size '" + cmd.getOptionValue("memoize") + "'.");
+					System.exit(1);
+				}
+			}
+
+			if (cmd.hasOption("assume-pure")) {
+				ret.assumePure = Arrays.asList(cmd.getOptionValue("assume-pure").split(","));
+			}
+
+			if (cmd.hasOption("j")) {
+				try {
+					ret.batchThreads = Integer.parseInt(cmd.getOptionValue("j"));
+				} catch (NumberFormatException exn) {
+					System.err.println("Invalid number of jobs '" + cmd.getOptionValue("j") + "'.");
+					System.exit(1);
+				}
+				if (ret.batchThreads < 1) {
+					System.err.println("Invalid number of jobs '" + cmd.getOptionValue("j") + "'.");
+					System.exit(1);
+				}
+			}
+
+			if (cmd.hasOption("T")) {
+				ret.traceFile = cmd.getOptionValue("T");
+			}
+
+			if (cmd.hasOption("profile")) {
+				ret.profilePrefix = cmd.getOptionValue("profile");
+			}
+
+			if (cmd.hasOption("coverage")) {
+				ret.coveragePrefix = cmd.getOptionValue("coverage");
+			}
+
+			if (cmd.hasOption("snapshot")) {
+				ret.snapshotFile = cmd.getOptionValue("snapshot");
+			}
+
 			if (cmd.hasOption("i")) {
 				ret.importPaths = Arrays.asList(cmd.getOptionValue("i").split(":"));
 			} else {
@@ -480,7 +627,67 @@ public class Compiler {
 					      errors);
 	}
 
+	/**
+	 * Parse, check and translate a module and its imports to IR, ready to run
+	 *
+	 * @param errors Output-only: All errors found
+	 * @return The program, or <tt>null</tt> if there were errors
+	 */
+	public static IRProgram compileToIR(String file, List<String> importPaths, List<? super CompilerError> errors) {
+		List<CompilerError> compilerErrors = new ArrayList<>();
+		Program program = createProgramFromFiles(Collections.singletonList(file), importPaths, compilerErrors);
+		errors.addAll(compilerErrors);
+		if (!compilerErrors.isEmpty()) {
+			return null;
+		}
+
+		List<CompilerError> nameErrors = program.nameErrors();
+		List<CompilerError> semaErrors = program.semanticErrors();
+		errors.addAll(nameErrors);
+		errors.addAll(semaErrors);
+		if (!nameErrors.isEmpty() || !semaErrors.isEmpty()) {
+			return null;
+		}
+
+		IRProgram irProg = program.genIR();
+		irProg.eliminateTailCalls();
+		return irProg;
+	}
+
+	/**
+	 * Run all jobs in the manifest and print their results in order
+	 */
+	public static boolean runBatch(CmdLineOpts opts) {
+		List<Batch.Job> jobs;
+		try {
+			jobs = Batch.parseManifest(new File(opts.manifestFile));
+		} catch (IOException e) {
+			System.err.println("ERROR Can't read manifest '" + opts.manifestFile + "': " + e.getMessage());
+			return false;
+		}
+
+		Batch batch = new Batch(opts.importPaths, opts.batchThreads,
+					() -> memoConfig(new InterpreterConfig(opts.engine)
+							 .setMaxStackDepth(opts.maxStackDepth)
+							 .setMaxSteps(opts.maxSteps)
+							 .setTimeLimit(opts.timeLimit)
+							 .setMaxHeap(opts.maxHeap), opts));
+		List<Batch.JobResult> results = batch.run(jobs);
+		PrintStream out = opts.out();
+		boolean success = true;
+		for (Batch.JobResult result : results) {
+			result.print(out);
+			success &= result.isSuccess();
+		}
+		out.flush();
+		return success;
+	}
+
 	public static boolean run(CmdLineOpts opts) {
+		if (opts.action == CmdLineOpts.Action.BATCH) {
+			return runBatch(opts);
+		}
+
 		List<CompilerError> compilerErrors = new ArrayList<>();
 
 		// open the output file / stdout
@@ -564,6 +771,7 @@ public class Compiler {
 
 		// Generate the IR program
 		IRProgram irProg = program.genIR();
+		irProg.setPrintSourceLocations(opts.printSourceLocations);
 
 		if (opts.action == CmdLineOpts.Action.IRGEN) {
 			irProg.print(out);
@@ -576,12 +784,73 @@ public class Compiler {
 			}
 		}
 
-		// Interpret the program
-		interpret(irProg, opts.progArgs);
+		// Interpret the program; profiles and coverage see every call, so
+		// tail-recursive functions keep their calls in place
+		if (opts.profilePrefix == null && opts.coveragePrefix == null) {
+			irProg.eliminateTailCalls();
+		}
+		if (opts.traceFile != null) {
+			Debug.enableTracing(Debug.DEFAULT_TRACE_CAPACITY);
+		}
+		Profiler profiler = opts.profilePrefix != null ? new Profiler() : null;
+		LineCoverage coverage = opts.coveragePrefix != null ? new LineCoverage() : null;
+		interpret(irProg, opts.progArgs,
+			  memoConfig(new InterpreterConfig(opts.engine)
+				     .setMaxStackDepth(opts.maxStackDepth)
+				     .setMaxSteps(opts.maxSteps)
+				     .setTimeLimit(opts.timeLimit)
+				     .setMaxHeap(opts.maxHeap)
+				     .setProfiler(profiler)
+				     .setCoverage(coverage)
+				     .setSnapshotFile(opts.snapshotFile == null ? null : Paths.get(opts.snapshotFile)), opts));
+		if (profiler != null) {
+			writeProfile(profiler, opts.profilePrefix);
+		}
+		if (coverage != null) {
+			writeCoverage(coverage, irProg, opts.coveragePrefix);
+		}
+		if (opts.traceFile != null) {
+			try {
+				Debug.dumpTrace(opts.traceFile);
+			} catch (IOException e) {
+				System.err.println("ERROR Can't write trace file '" + opts.traceFile + "': " + e.getMessage());
+			}
+		}
 
 		return true;
 	}
 
+	// Apply the memoization options to config
+	private static InterpreterConfig memoConfig(InterpreterConfig config, CmdLineOpts opts) {
+		config.setMemoCapacity(opts.memoCapacity);
+		for (String name : opts.assumePure) {
+			config.markPure(name);
+		}
+		return config;
+	}
+
+	// Write the results of a profiled run to PREFIX.folded and PREFIX.tsv
+	public static void writeProfile(Profiler profiler, String prefix) {
+		try (PrintStream folded = new PrintStream(prefix + ".folded");
+		     PrintStream table = new PrintStream(prefix + ".tsv")) {
+			profiler.writeCollapsed(folded);
+			profiler.writeTable(table);
+		} catch (FileNotFoundException e) {
+			System.err.println("ERROR Can't write profile '" + prefix + "': " + e.getMessage());
+		}
+	}
+
+	// Write the line counts of a run to PREFIX.info and PREFIX.lines
+	public static void writeCoverage(LineCoverage coverage, IRProgram program, String prefix) {
+		try (PrintStream info = new PrintStream(prefix + ".info");
+		     PrintStream lines = new PrintStream(prefix + ".lines")) {
+			coverage.writeLcov(info, program);
+			coverage.writeAnnotated(lines, program);
+		} catch (FileNotFoundException e) {
+			System.err.println("ERROR Can't write coverage '" + prefix + "': " + e.getMessage());
+		}
+	}
+
 	public static Object CodeProber_parse(String[] args) throws Throwable {
 		CODE_PROBER_MODE = true;
 		CmdLineOpts opts = parseCmdLineArgs(args);
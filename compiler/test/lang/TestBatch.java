@@ -0,0 +1,127 @@
+package lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import lang.ir.ExecutionMode;
+import lang.ir.IRIntegerValue;
+import lang.ir.InterpreterConfig;
+
+/**
+ * Tests for batch mode (lang.Batch)
+ */
+public class TestBatch {
+	private static final File DIRECTORY = new File("testfiles/batch").getAbsoluteFile();
+	private static final File MANIFEST = new File("testfiles/batch", "manifest.txt");
+
+	private static String path(String relative) {
+		return new File(DIRECTORY, relative).getPath();
+	}
+
+	private static String counts(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i <= n; ++i) {
+			sb.append(i).append('\n');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void parseManifest() throws IOException {
+		List<Batch.Job> jobs = Batch.parseManifest(MANIFEST);
+		assertEquals(4, jobs.size());
+
+		// comments and empty lines are skipped, but count as lines
+		assertEquals(Arrays.asList(3, 5, 6, 7), Arrays.asList(jobs.get(0).getNumber(), jobs.get(1).getNumber(),
+								     jobs.get(2).getNumber(), jobs.get(3).getNumber()));
+
+		assertEquals(path("programs/count.in"), jobs.get(0).getModule());
+		assertEquals(Arrays.asList("300"), jobs.get(0).getArgs());
+		assertNull(jobs.get(0).getInputFile());
+
+		assertEquals(path("programs/echo.in"), jobs.get(1).getModule());
+		assertEquals(Arrays.asList("7"), jobs.get(1).getArgs());
+		assertEquals(path("input/lines.txt"), jobs.get(1).getInputFile());
+
+		assertEquals(Collections.emptyList(), jobs.get(2).getArgs());
+	}
+
+	private static List<Batch.Job> parse(String... lines) throws IOException {
+		Path manifest = Files.createTempFile("teal-batch", ".txt");
+		try {
+			Files.write(manifest, Arrays.asList(lines));
+			return Batch.parseManifest(manifest.toFile());
+		} finally {
+			Files.delete(manifest);
+		}
+	}
+
+	@Test
+	public void absolutePaths() throws IOException {
+		String module = path("programs/count.in");
+		List<Batch.Job> jobs = parse(module + " 1 < " + path("input/lines.txt"));
+		assertEquals(module, jobs.get(0).getModule());
+		assertEquals(path("input/lines.txt"), jobs.get(0).getInputFile());
+	}
+
+	@Test(expected = IOException.class)
+	public void inputBeforeArguments() throws IOException {
+		parse("count.in < input.txt 1");
+	}
+
+	@Test(expected = IOException.class)
+	public void twoInputFiles() throws IOException {
+		parse("count.in 1 < a.txt b.txt");
+	}
+
+	@Test(expected = IOException.class)
+	public void missingInputFile() throws IOException {
+		parse("count.in 1 <");
+	}
+
+	@Test(expected = IOException.class)
+	public void missingModule() throws IOException {
+		parse("< input.txt");
+	}
+
+	@Test
+	public void run() throws IOException {
+		List<Batch.Job> jobs = Batch.parseManifest(MANIFEST);
+		List<Batch.JobResult> results = new Batch(Collections.emptyList(), 4,
+							  () -> new InterpreterConfig(ExecutionMode.TREE)).run(jobs);
+		assertEquals(jobs.size(), results.size());
+		for (int i = 0; i < jobs.size(); ++i) {
+			// results come in the order of the jobs
+			assertSame(jobs.get(i), results.get(i).getJob());
+		}
+
+		// each job has its own output, even while the two counts run concurrently
+		Batch.JobResult first = results.get(0);
+		assertTrue(first.getError(), first.isSuccess());
+		assertEquals(counts(300), first.getOutput().toString());
+		assertEquals(300, ((IRIntegerValue) first.getReturnValue()).asLong());
+
+		Batch.JobResult echo = results.get(1);
+		assertTrue(echo.getError(), echo.isSuccess());
+		assertEquals("[\"first\", \"second\"]\n", echo.getOutput().toString());
+		assertEquals(9, ((IRIntegerValue) echo.getReturnValue()).asLong());
+
+		Batch.JobResult broken = results.get(2);
+		assertFalse(broken.isSuccess());
+		assertTrue(broken.getError(), broken.getError().startsWith("Compilation failed:"));
+		assertEquals("", broken.getOutput().toString());
+
+		Batch.JobResult last = results.get(3);
+		assertTrue(last.getError(), last.isSuccess());
+		assertEquals(counts(200), last.getOutput().toString());
+		assertEquals(200, ((IRIntegerValue) last.getReturnValue()).asLong());
+	}
+}
@@ -0,0 +1,134 @@
+package lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import lang.ir.*;
+
+/**
+ * Tests the lcov and annotated output of line coverage
+ */
+public class TestCoverage {
+	private static final Path FILE = Paths.get("testfiles/tools", "coverage.in");
+
+	// execution counts of the statement lines of coverage.in, when run with 3
+	private static final TreeMap<Integer, Long> EXECUTIONS = new TreeMap<>();
+	static {
+		EXECUTIONS.put(2, 1L);	// var i := 0;
+		EXECUTIONS.put(3, 4L);	// while i < n: one more check than iterations
+		EXECUTIONS.put(4, 3L);	// i := i + 1;
+		EXECUTIONS.put(6, 1L);	// if n < 0
+		EXECUTIONS.put(7, 0L);	// return never();
+		EXECUTIONS.put(9, 1L);	// return i;
+		EXECUTIONS.put(13, 0L);	// return 0;
+	}
+
+	private IRProgram program;
+
+	private LineCoverage run(ExecutionMode mode) throws InterpreterException {
+		program = Util.compileToIR(FILE);
+		LineCoverage coverage = new LineCoverage();
+		InterpreterConfig config = Util.memoryConfig(mode).setCoverage(coverage);
+		IRValue ret = program.eval(Collections.singletonList(new IRIntegerValue(3)), config).getReturnValue();
+		assertEquals(3, ((IRIntegerValue) ret).asLong());
+		return coverage;
+	}
+
+	private static List<String> lines(ByteArrayOutputStream bytes) {
+		return Arrays.asList(new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\\r?\\n"));
+	}
+
+	@Test
+	public void lcov() throws InterpreterException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		run(ExecutionMode.TREE).writeLcov(new PrintStream(bytes, true), program);
+		List<String> lines = lines(bytes);
+
+		assertEquals("TN:", lines.get(0));
+		assertEquals("SF:" + FILE, lines.get(1));
+		assertEquals(Arrays.asList("FN:1,main", "FN:12,never",
+					   "FNDA:1,main", "FNDA:0,never",
+					   "FNF:2", "FNH:1"),
+			     lines.subList(2, 8));
+		assertEquals("end_of_record", lines.get(lines.size() - 1));
+
+		// lines without statements may have code too (e.g. the implicit return),
+		// but the statement lines must all be there with their counts
+		TreeMap<Integer, Long> da = new TreeMap<>();
+		Pattern daPattern = Pattern.compile("DA:(\\d+),(\\d+)");
+		int i = 8;
+		for (; lines.get(i).startsWith("DA:"); ++i) {
+			Matcher m = daPattern.matcher(lines.get(i));
+			assertTrue(lines.get(i), m.matches());
+			int line = Integer.parseInt(m.group(1));
+			assertTrue("DA lines out of order: " + lines.get(i), da.isEmpty() || line > da.lastKey());
+			da.put(line, Long.parseLong(m.group(2)));
+		}
+		for (Integer line : EXECUTIONS.keySet()) {
+			assertEquals("DA for line " + line, EXECUTIONS.get(line), da.get(line));
+		}
+		long hit = da.values().stream().filter(n -> n > 0).count();
+		assertEquals("LF:" + da.size(), lines.get(i));
+		assertEquals("LH:" + hit, lines.get(i + 1));
+		assertEquals(i + 3, lines.size());
+	}
+
+	@Test
+	public void annotated() throws InterpreterException, IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		run(ExecutionMode.TREE).writeAnnotated(new PrintStream(bytes, true), program);
+		List<String> lines = lines(bytes);
+		List<String> source = Files.readAllLines(FILE);
+
+		assertEquals("==> " + FILE + " <==", lines.get(0));
+		assertEquals(source.size() + 1, lines.size());
+		Pattern pattern = Pattern.compile(" *(\\S+) +(\\S+) +(\\d+): (.*)");
+		for (int i = 1; i <= source.size(); ++i) {
+			Matcher m = pattern.matcher(lines.get(i));
+			assertTrue(lines.get(i), m.matches());
+			assertEquals(i, Integer.parseInt(m.group(3)));
+			assertEquals(source.get(i - 1), m.group(4));
+			Long executions = EXECUTIONS.get(i);
+			if (executions != null) {
+				assertEquals(lines.get(i), executions == 0 ? "#####" : executions.toString(), m.group(1));
+				if (executions == 0) {
+					assertEquals(lines.get(i), "0", m.group(2));
+				} else {
+					// at least one instruction, each run as often as the line
+					assertTrue(lines.get(i), Long.parseLong(m.group(2)) >= executions);
+				}
+			}
+		}
+		// a line without code
+		assertEquals(String.format("%12s %14s %6d: %s", "-", "-", 11, ""), lines.get(11));
+	}
+
+	private String lcov(ExecutionMode mode) throws InterpreterException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		run(mode).writeLcov(new PrintStream(bytes, true), program);
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void allEnginesCountLikeTree() throws InterpreterException {
+		// DECODED counts blocks itself, the other engines run DECODED
+		String tree = lcov(ExecutionMode.TREE);
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			assertEquals(mode.toString(), tree, lcov(mode));
+		}
+	}
+}
@@ -4,8 +4,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
@@ -13,6 +11,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.concurrent.TimeUnit;
 import java.util.LinkedList;
 import java.util.List;
@@ -44,6 +43,9 @@ import lang.ir.IRIntegerValue;
 import lang.ir.IRStringValue;
 import lang.ir.InterpreterException;
 import lang.ir.IRTypeRef;
+import lang.ir.ExecutionMode;
+import lang.ir.InterpreterConfig;
+import lang.ir.IOContext;
 
 /**
  * Test class for the IR Interpreter
@@ -53,12 +55,14 @@ public class TestInterpreter {
 	private static final String TEST_DIRECTORY_NAME = "testfiles/interpreter";
 	private static final File TEST_DIRECTORY = new File(TEST_DIRECTORY_NAME);
 	private final String filename;
+	private final ExecutionMode mode;
 
 	@Rule
 	public Timeout timeoutRule = new Timeout(2, TimeUnit.SECONDS);
 
-	public TestInterpreter(String testFile) {
+	public TestInterpreter(String testFile, ExecutionMode mode) {
 		filename = testFile;
+		this.mode = mode;
 	}
 
 
@@ -66,10 +70,8 @@ public class TestInterpreter {
 		runTestWithSpec(filename);
 	}
 
-	private static final PrintStream STDOUT_BACKUP = System.out;
 
-
-	@Parameters(name = "{0}")
+	@Parameters(name = "{0} [{1}]")
 	public static Iterable<Object[]> getTests() {
 		// Load all the tests in the input folders, but if a test requires
 		// a specific language version, run it only if that macthes the
@@ -91,8 +93,17 @@ public class TestInterpreter {
 				}
 			};
 
-		return Util.getTestParameters(TEST_DIRECTORY, ".in").stream()
-			.filter(rejectOnDistinctExplicitVersion).collect(Collectors.toList());
+		// Every test must pass with every execution engine
+		List<Object[]> tests = new ArrayList<>();
+		for (Object[] test : Util.getTestParameters(TEST_DIRECTORY, ".in")) {
+			if (!rejectOnDistinctExplicitVersion.test(test)) {
+				continue;
+			}
+			for (ExecutionMode mode : ExecutionMode.values()) {
+				tests.add(new Object[] { test[0], mode });
+			}
+		}
+		return tests;
 	}
 
 
@@ -190,7 +201,7 @@ public class TestInterpreter {
 	}
 
 
-	private static boolean checkResultNoCatch(IRProgram p, Object expectedReturn, List<String> expectedPrints, Object ... testInput) throws InterpreterException {
+	private static boolean checkResultNoCatch(IRProgram p, InterpreterConfig config, Object expectedReturn, List<String> expectedPrints, Object ... testInput) throws InterpreterException {
 		ArrayList<IRValue> args = new ArrayList<>();
 		for (Object input : testInput) {
 			if (input instanceof String) {
@@ -203,18 +214,8 @@ public class TestInterpreter {
 			}
 		}
 
-		IRValue ret;
-		ByteArrayOutputStream stdoutStream = new ByteArrayOutputStream();
-
-		try {
-			System.out.flush();
-			System.setOut(new PrintStream(stdoutStream));
-			ret = p.eval(args).getReturnValue();
-		} finally {
-			System.out.flush();
-			System.setOut(STDOUT_BACKUP);
-		}
-		List<String> actualPrints = linesToList(stdoutStream.toString());
+		IRValue ret = p.eval(args, config).getReturnValue();
+		List<String> actualPrints = linesToList(config.getIO().getOutput().toString());
 		comparePrints(actualPrints, expectedPrints);
 
 		if (ret instanceof IRIntegerValue) {
@@ -234,11 +235,11 @@ public class TestInterpreter {
 		return false;
 	}
 
-	private static boolean checkResult(IRProgram p, Object expectedReturn,
+	private static boolean checkResult(IRProgram p, InterpreterConfig config, Object expectedReturn,
 					   List<String> expectedPrints,
 					   Object ... testInput) {
 		try {
-			return checkResultNoCatch(p, expectedReturn, expectedPrints, testInput);
+			return checkResultNoCatch(p, config, expectedReturn, expectedPrints, testInput);
 		} catch (InterpreterException e) {
 			System.err.println("Error while interpreting program: " + e.toString());
 		}
@@ -250,6 +251,12 @@ public class TestInterpreter {
                 public Optional<Object> output = Optional.empty();
                 public Optional<Class> exception = Optional.empty();
 		public List<String> prints = new ArrayList<>();
+		public List<String> stdin = new ArrayList<>(); // lines of input for read() etc.
+		public long maxSteps = 0; // execution budget, see InterpreterConfig.setMaxSteps()
+		public long maxHeap = 0; // allocation limit, see InterpreterConfig.setMaxHeap()
+		public int memoCapacity = 0; // result cache size, see InterpreterConfig.setMemoCapacity()
+		public boolean snapshot = false; // whether the runs of the file share a heap snapshot
+		public Optional<EnumSet<ExecutionMode>> modes = Optional.empty(); // engines that run the case, default all
 
 		// Workaround for bugs in Gradle/JUnit
 		@Test public void thisIsNotATest() {}
@@ -276,7 +283,13 @@ public class TestInterpreter {
                 public static Pattern INPUT_PATTERN = Pattern.compile("// IN: (.+)");
                 public static Pattern OUTPUT_PATTERN = Pattern.compile("// OUT: (([-0-9]+)|(\".*\"))$");
                 public static Pattern EXCEPTION_PATTERN = Pattern.compile("// EXCEPTION: (.+)");
+		public static Pattern MAX_STEPS_PATTERN = Pattern.compile("// MAX-STEPS: ([0-9]+)");
+		public static Pattern MAX_HEAP_PATTERN = Pattern.compile("// MAX-HEAP: ([0-9]+)");
+		public static Pattern MEMOIZE_PATTERN = Pattern.compile("// MEMOIZE: ([0-9]+)");
+		public static Pattern SNAPSHOT_PATTERN = Pattern.compile("^// SNAPSHOT$");
+		public static Pattern MODES_PATTERN = Pattern.compile("// MODES: (.+)");
 		public static Pattern PRINT_PATTERN = Pattern.compile("// PRINT: (.+)");
+		public static Pattern STDIN_PATTERN = Pattern.compile("// STDIN: (.+)");
                 public static Pattern NO_INPUT_PATTERN = Pattern.compile("^// IN:NONE$");
 
                 public static TestSpec parseInputs(String line) {
@@ -323,6 +336,21 @@ public class TestInterpreter {
 			}
 		}
 
+		public static TestSpec parseStdin(String line) {
+			Matcher m = STDIN_PATTERN.matcher(line);
+
+			if (m.find()) {
+				Object v = parseValue(m.group(1));
+				assertTrue("STDIN: spec values must be strings in double quotes",
+					   v instanceof String);
+				TestSpec ts = TestSpec.empty();
+				ts.stdin.add((String)v);
+				return ts;
+			} else {
+				return TestSpec.empty();
+			}
+		}
+
                 /**
                  * Parses a value for outputs or inputs
                  * Supports Integers and String
@@ -376,6 +404,56 @@ public class TestInterpreter {
                         }
                 }
 
+		public static TestSpec parseMaxSteps(String line) {
+			Matcher m = MAX_STEPS_PATTERN.matcher(line);
+
+			TestSpec ts = TestSpec.empty();
+			if (m.find()) {
+				ts.maxSteps = Long.parseLong(m.group(1));
+			}
+			return ts;
+		}
+
+		public static TestSpec parseMaxHeap(String line) {
+			Matcher m = MAX_HEAP_PATTERN.matcher(line);
+
+			TestSpec ts = TestSpec.empty();
+			if (m.find()) {
+				ts.maxHeap = Long.parseLong(m.group(1));
+			}
+			return ts;
+		}
+
+		public static TestSpec parseMemoize(String line) {
+			Matcher m = MEMOIZE_PATTERN.matcher(line);
+
+			TestSpec ts = TestSpec.empty();
+			if (m.find()) {
+				ts.memoCapacity = Integer.parseInt(m.group(1));
+			}
+			return ts;
+		}
+
+		public static TestSpec parseSnapshot(String line) {
+			TestSpec ts = TestSpec.empty();
+			ts.snapshot = SNAPSHOT_PATTERN.matcher(line).find();
+			return ts;
+		}
+
+		public static TestSpec parseModes(String line) {
+			Matcher m = MODES_PATTERN.matcher(line);
+
+			TestSpec ts = TestSpec.empty();
+			if (m.find()) {
+				EnumSet<ExecutionMode> modes = EnumSet.noneOf(ExecutionMode.class);
+				for (String mode : m.group(1).trim().split("\\s+")) {
+					modes.add(ExecutionMode.valueOf(mode));
+				}
+				ts.modes = Optional.of(modes);
+			}
+			return ts;
+		}
+
                 private <T> Optional<T> combineOptionals(Optional<T> o1, Optional<T> o2) {
                         if (o1.isPresent() & !o2.isPresent()) {
                                 return o1;
@@ -396,7 +474,19 @@ public class TestInterpreter {
                         this.inputs = combineOptionals(this.inputs, other.inputs);
                         this.output = combineOptionals(this.output, other.output);
                         this.prints.addAll(other.prints);
+                        this.stdin.addAll(other.stdin);
                         this.exception = combineOptionals(this.exception, other.exception);
+			if (other.maxSteps != 0) {
+				this.maxSteps = other.maxSteps;
+			}
+			if (other.maxHeap != 0) {
+				this.maxHeap = other.maxHeap;
+			}
+			if (other.memoCapacity != 0) {
+				this.memoCapacity = other.memoCapacity;
+			}
+			this.snapshot |= other.snapshot;
+			this.modes = combineOptionals(this.modes, other.modes);
                 }
 
 
@@ -405,7 +495,10 @@ public class TestInterpreter {
                 }
 
                 public Boolean isBlank() {
-                        return !inputs.isPresent() & !output.isPresent() & !exception.isPresent() & this.prints.size() == 0;
+                        return !inputs.isPresent() & !output.isPresent() & !exception.isPresent() & this.prints.size() == 0
+				& this.stdin.size() == 0
+				& this.maxSteps == 0 & this.maxHeap == 0 & this.memoCapacity == 0 & !this.snapshot
+				& !this.modes.isPresent();
                 }
         }
 
@@ -447,6 +540,27 @@ public class TestInterpreter {
                 assertEquals(lang.ir.InterpreterException.class, e.exception.get());
         }
 
+        @Test
+        public void testMaxStepsSpec() {
+                TestSpec s = TestSpec.parseMaxSteps("// MAX-STEPS: 1000");
+                assertEquals(1000, s.maxSteps);
+                assertFalse(s.isBlank());
+        }
+
+        @Test
+        public void testModesSpec() {
+                TestSpec s = TestSpec.parseModes("// MODES: STACK JIT");
+                assertEquals(Optional.of(EnumSet.of(ExecutionMode.STACK, ExecutionMode.JIT)), s.modes);
+                assertFalse(s.isBlank());
+        }
+
+        @Test
+        public void testStdinSpec() {
+                TestSpec s = TestSpec.parseStdin("// STDIN: \"1 2 3\"");
+                assertEquals(Arrays.asList("1 2 3"), s.stdin);
+                assertFalse(s.isBlank());
+        }
+
         @Test
         public void testMultipleSpecs() {
                 String text = "// IN: 10 10\n// OUT: 5\n// IN: 2 3\n// OUT: 0\n";
@@ -488,8 +602,14 @@ public class TestInterpreter {
                 for (String l : lines) {
                         currentSpec.combineWith(TestSpec.parseInputs(l));
                         currentSpec.combineWith(TestSpec.parsePrints(l));
+                        currentSpec.combineWith(TestSpec.parseStdin(l));
                         currentSpec.combineWith(TestSpec.parseOutput(l));
                         currentSpec.combineWith(TestSpec.parseException(l));
+                        currentSpec.combineWith(TestSpec.parseMaxSteps(l));
+                        currentSpec.combineWith(TestSpec.parseMaxHeap(l));
+                        currentSpec.combineWith(TestSpec.parseMemoize(l));
+                        currentSpec.combineWith(TestSpec.parseSnapshot(l));
+                        currentSpec.combineWith(TestSpec.parseModes(l));
                         if(currentSpec.isComplete()) {
                                 results.add(currentSpec);
                                 currentSpec = TestSpec.empty();
@@ -524,12 +644,49 @@ public class TestInterpreter {
         }
 
         public void checkTestSpec(IRProgram p, List<TestSpec> testCases) {
+		// With "// SNAPSHOT", the runs share a heap snapshot, which the
+		// first one starts without
+		Path snapshot = null;
+		if (testCases.stream().anyMatch(t -> t.snapshot)) {
+			try {
+				snapshot = Files.createTempFile("teal-snapshot", ".heap");
+				Files.delete(snapshot);
+			} catch (IOException e) {
+				throw new RuntimeException("Can't create a snapshot file", e);
+			}
+		}
+		try {
+			checkTestSpec(p, testCases, snapshot);
+		} finally {
+			if (snapshot != null) {
+				try {
+					Files.deleteIfExists(snapshot);
+				} catch (IOException e) {
+					// only a leftover temporary file
+				}
+			}
+		}
+	}
+
+        private void checkTestSpec(IRProgram p, List<TestSpec> testCases, Path snapshot) {
                 for (TestSpec t : testCases) {
                         assertTrue(t.isComplete());
+			if (t.modes.isPresent() && !t.modes.get().contains(mode)) {
+				// e.g. recursion too deep for the engines that use the Java stack
+				continue;
+			}
+			StringBuilder input = new StringBuilder();
+			for (String line : t.stdin) {
+				input.append(line).append('\n');
+			}
+			InterpreterConfig config = new InterpreterConfig(mode).setMaxSteps(t.maxSteps).setMaxHeap(t.maxHeap)
+				.setMemoCapacity(t.memoCapacity)
+				.setSnapshotFile(snapshot)
+				.setIO(IOContext.memory(input.toString()));
 			if (t.exception.isPresent()) {
 				// exceptional execution
 				try {
-					checkResultNoCatch(p, null, t.prints, t.inputs.get());
+					checkResultNoCatch(p, config, null, t.prints, t.inputs.get());
 					assertFalse("Missed exception: " + t.exception.get(),
 						    true);
 				} catch (Throwable exn) {
@@ -542,7 +699,7 @@ public class TestInterpreter {
 				}
 			} else {
 				// normal execution
-				assertTrue(checkResult(p, t.output.get(), t.prints, t.inputs.get()));
+				assertTrue(checkResult(p, config, t.output.get(), t.prints, t.inputs.get()));
 			}
                 }
         }
@@ -555,6 +712,11 @@ public class TestInterpreter {
         public void runTestWithSpec(String filename) {
                 IRProgram m = loadAndCompileProgram(filename);
                 assertNotNull(m);
+		if (mode != ExecutionMode.TREE) {
+			// the reference engine runs the IR as generated, the others
+			// also check that tail call elimination preserves behaviour
+			m.eliminateTailCalls();
+		}
 		List<TestSpec> spec = readTestSpec(filename);
 		assertTrue(0 < spec.size());
                 checkTestSpec(m, spec);
@@ -0,0 +1,102 @@
+package lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import lang.ir.*;
+
+/**
+ * Tests the output of the profiler
+ */
+public class TestProfiler {
+	private static final String TEST_DIRECTORY_NAME = "testfiles/tools";
+	private static final int N = 1000;
+
+	private static Profiler profile(String name) throws InterpreterException {
+		IRProgram p = Util.compileToIR(Paths.get(TEST_DIRECTORY_NAME, name));
+		Profiler profiler = new Profiler();
+		InterpreterConfig config = Util.memoryConfig(ExecutionMode.TREE).setProfiler(profiler);
+		p.eval(Collections.singletonList(new IRIntegerValue(N)), config);
+		return profiler;
+	}
+
+	private static List<String> lines(ByteArrayOutputStream bytes) {
+		String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		return text.isEmpty() ? Collections.emptyList() : Arrays.asList(text.split("\\r?\\n"));
+	}
+
+	@Test
+	public void collapsedStacks() throws InterpreterException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		profile("profile.in").writeCollapsed(new PrintStream(bytes, true));
+
+		// contexts without measurable self time are left out
+		HashSet<String> contexts = new HashSet<>(Arrays.asList("main", "main;square", "main;print"));
+		HashSet<String> seen = new HashSet<>();
+		for (String line : lines(bytes)) {
+			assertTrue(line, line.matches("[a-z;]+ [1-9][0-9]*"));
+			String path = line.substring(0, line.indexOf(' '));
+			assertTrue("Unexpected context: " + line, contexts.contains(path));
+			assertTrue("Repeated context: " + line, seen.add(path));
+		}
+		// the loop makes main take more than a microsecond
+		assertTrue(seen.contains("main"));
+	}
+
+	@Test
+	public void table() throws InterpreterException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		profile("profile.in").writeTable(new PrintStream(bytes, true));
+		List<String> lines = lines(bytes);
+
+		assertEquals("kind\tlocation\tname\tcount\tinclusive_us\tself_us\thit_rate", lines.get(0));
+		Map<String, Long> functions = new HashMap<>();
+		Map<String, Long> calls = new HashMap<>();
+		Map<String, Long> maxBlockCounts = new HashMap<>();
+		for (String line : lines.subList(1, lines.size())) {
+			String[] columns = line.split("\t", -1);
+			assertEquals(line, 7, columns.length);
+			String name = columns[2];
+			long count = Long.parseLong(columns[3]);
+			switch (columns[0]) {
+			case "function":
+				assertNull("Repeated function: " + line, functions.put(name, count));
+				assertTrue(line, Long.parseLong(columns[4]) >= Long.parseLong(columns[5]));
+				break;
+			case "block":
+				String function = name.substring(0, name.indexOf('#'));
+				maxBlockCounts.merge(function, count, Math::max);
+				assertTrue(line, count > 0);
+				break;
+			case "call":
+				assertNull("Repeated edge: " + line, calls.put(name, count));
+				break;
+			default:
+				fail("Unexpected row: " + line);
+			}
+		}
+
+		assertEquals(Long.valueOf(1), functions.get("main"));
+		assertEquals(Long.valueOf(N), functions.get("square"));
+		assertEquals(Long.valueOf(1), functions.get("print"));
+
+		assertEquals(Long.valueOf(N), calls.get("main -> square"));
+		assertEquals(Long.valueOf(1), calls.get("main -> print"));
+		assertEquals(2, calls.size());
+
+		// the loop condition runs once more than the body
+		assertEquals(Long.valueOf(N + 1), maxBlockCounts.get("main"));
+		assertEquals(Long.valueOf(N), maxBlockCounts.get("square"));
+	}
+}
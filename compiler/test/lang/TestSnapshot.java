@@ -0,0 +1,78 @@
+package lang;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import lang.ir.*;
+
+/**
+ * Tests that heap snapshots are only restored into the program that wrote them
+ */
+public class TestSnapshot {
+	private static final String TEST_DIRECTORY_NAME = "testfiles/tools";
+	private Path snapshot;
+
+	@Before
+	public void createSnapshotFile() throws IOException {
+		snapshot = Files.createTempFile("teal-snapshot", ".heap");
+		Files.delete(snapshot);
+	}
+
+	@After
+	public void deleteSnapshotFile() throws IOException {
+		Files.deleteIfExists(snapshot);
+	}
+
+	private static IRProgram compile(String name) {
+		return Util.compileToIR(Paths.get(TEST_DIRECTORY_NAME, name));
+	}
+
+	private long run(IRProgram p, long n) throws InterpreterException {
+		InterpreterConfig config = Util.memoryConfig(ExecutionMode.TREE).setSnapshotFile(snapshot);
+		List<IRValue> args = Collections.singletonList(new IRIntegerValue(n));
+		return ((IRIntegerValue) p.eval(args, config).getReturnValue()).asLong();
+	}
+
+	@Test
+	public void restoresSameProgram() throws InterpreterException {
+		assertEquals(81, run(compile("snapshot-a.in"), 9));
+		assertTrue(Files.exists(snapshot));
+		// a fresh compilation of the same file has the same fingerprint
+		assertEquals(144, run(compile("snapshot-a.in"), 12));
+	}
+
+	@Test
+	public void ignoresTailCallElimination() throws InterpreterException {
+		Path file = Paths.get(TEST_DIRECTORY_NAME, "snapshot-tail.in");
+		IRProgram eliminated = Util.generateIR(file);
+		assertEquals(1, eliminated.eliminateTailCalls());
+
+		// profiled runs keep their tail calls: snapshots go both ways
+		assertEquals(81, run(Util.generateIR(file), 9));
+		assertEquals(144, run(eliminated, 12));
+		Files.delete(snapshot);
+		assertEquals(81, run(eliminated, 9));
+		assertEquals(144, run(Util.generateIR(file), 12));
+	}
+
+	@Test
+	public void rejectsChangedLiteral() throws InterpreterException {
+		assertEquals(81, run(compile("snapshot-a.in"), 9));
+		assertTrue(Files.exists(snapshot));
+		try {
+			run(compile("snapshot-b.in"), 150);
+			fail("Restored the snapshot of a program with a different literal");
+		} catch (InterpreterException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("different program"));
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package lang;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import lang.common.Debug;
+import lang.common.Debug.TraceEvent;
+
+/**
+ * Tests the trace ring buffer and its NDJSON and binary dumps
+ */
+public class TestTrace {
+	private Path dir;
+
+	@Before
+	public void recordTrace() throws IOException {
+		dir = Files.createTempDirectory("teal-trace");
+		// six events into room for four: the first two are overwritten
+		Debug.enableTracing(4);
+		Debug.trace(TraceEvent.CALL, "main", 1);
+		Debug.trace(TraceEvent.CALL, "f", 2);
+		Debug.trace(TraceEvent.BUILTIN, "print", 1);
+		Debug.trace(TraceEvent.BRANCH, "f", 3);
+		Debug.trace(TraceEvent.CALL, "g\"\n", -5);
+		Debug.trace(TraceEvent.RETURN, null, 0);
+	}
+
+	@After
+	public void deleteTrace() throws IOException {
+		Debug.disableTracing();
+		for (Path p : Files.newDirectoryStream(dir)) {
+			Files.delete(p);
+		}
+		Files.delete(dir);
+	}
+
+	// the events that remain after the wraparound, in order
+	private static final List<Long> SEQS = Arrays.asList(2L, 3L, 4L, 5L);
+	private static final List<TraceEvent> EVENTS = Arrays.asList(TraceEvent.BUILTIN, TraceEvent.BRANCH,
+								      TraceEvent.CALL, TraceEvent.RETURN);
+	private static final List<Long> VALUES = Arrays.asList(1L, 3L, -5L, 0L);
+
+	private List<Long> ndjsonTimes() throws IOException {
+		Path file = dir.resolve("trace.ndjson");
+		Debug.dumpTrace(file.toString());
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(4, lines.size());
+
+		Pattern p = Pattern.compile("\\{\"seq\":(\\d+),\"t\":(-?\\d+),\"event\":\"([a-z]+)\",\"subject\":(.*),\"value\":(-?\\d+)\\}");
+		List<String> subjects = Arrays.asList("\"print\"", "\"f\"", "\"g\\\"\\u000a\"", "null");
+		List<Long> times = new ArrayList<>();
+		for (int i = 0; i < lines.size(); ++i) {
+			Matcher m = p.matcher(lines.get(i));
+			assertTrue(lines.get(i), m.matches());
+			assertEquals((long) SEQS.get(i), Long.parseLong(m.group(1)));
+			times.add(Long.parseLong(m.group(2)));
+			assertEquals(EVENTS.get(i).name().toLowerCase(), m.group(3));
+			assertEquals(subjects.get(i), m.group(4));
+			assertEquals((long) VALUES.get(i), Long.parseLong(m.group(5)));
+		}
+		return times;
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long v = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+	}
+
+	@Test
+	public void ndjson() throws IOException {
+		List<Long> times = ndjsonTimes();
+		for (int i = 1; i < times.size(); ++i) {
+			assertTrue(times.get(i - 1) <= times.get(i));
+		}
+	}
+
+	@Test
+	public void binary() throws IOException {
+		Path file = dir.resolve("trace.bin");
+		Debug.dumpTrace(file.toString());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+
+		byte[] magic = new byte[8];
+		in.readFully(magic);
+		assertEquals("TEALTRC1", new String(magic, StandardCharsets.US_ASCII));
+
+		// subjects in order of first use; null is written as "null"
+		List<String> table = new ArrayList<>();
+		long nsubjects = readVarint(in);
+		for (long i = 0; i < nsubjects; ++i) {
+			byte[] bytes = new byte[(int) readVarint(in)];
+			in.readFully(bytes);
+			table.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		assertEquals(Arrays.asList("print", "f", "g\"\n", "null"), table);
+
+		assertEquals(4, readVarint(in));
+		assertEquals(2, readVarint(in));
+		long time = in.readLong();
+		List<String> subjects = new ArrayList<>();
+		List<Long> times = new ArrayList<>();
+		for (int i = 0; i < 4; ++i) {
+			assertEquals(EVENTS.get(i).ordinal(), in.readUnsignedByte());
+			subjects.add(table.get((int) readVarint(in)));
+			long zigzag = readVarint(in);
+			assertEquals((long) VALUES.get(i), (zigzag >>> 1) ^ -(zigzag & 1));
+			time += readVarint(in);
+			times.add(time);
+		}
+		assertEquals(-1, in.read());
+		assertEquals(Arrays.asList("print", "f", "g\"\n", "null"), subjects);
+
+		// the delta-encoded times match the absolute ones of the NDJSON dump
+		assertEquals(ndjsonTimes(), times);
+	}
+
+	@Test
+	public void withoutWraparound() throws IOException {
+		Debug.enableTracing(4);
+		Debug.trace(TraceEvent.CALL, "main", 0);
+		Path file = dir.resolve("short.json");
+		Debug.dumpTrace(file.toString());
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0), lines.get(0).matches("\\{\"seq\":0,\"t\":-?\\d+,\"event\":\"call\",\"subject\":\"main\",\"value\":0\\}"));
+	}
+}
@@ -2,6 +2,7 @@ package lang;
 
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -10,15 +11,24 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Scanner;
 
 import org.junit.Test;
 
+import lang.ast.CompilerError;
 import lang.ast.Program;
 import lang.ast.TEALParser;
 import lang.ast.LangScanner;
+import lang.ir.ExecutionMode;
+import lang.ir.IOContext;
+import lang.ir.IRProgram;
+import lang.ir.InterpreterConfig;
 
 /** Utility methods for running tests. */
 public final class Util {
@@ -105,6 +115,40 @@ public final class Util {
     return text.replace(SYS_LINE_SEP, "\n").trim();
   }
 
+  /**
+   * Compiles the given file to IR, failing the test on any compiler error
+   */
+  public static IRProgram compileToIR(Path file) {
+    List<CompilerError> errors = new ArrayList<>();
+    IRProgram p = Compiler.compileToIR(file.toString(), Collections.emptyList(), errors);
+    assertTrue(errors.toString(), errors.isEmpty());
+    return p;
+  }
+
+  /**
+   * Translates the given file to IR as generated, without the tail call
+   * elimination of Compiler.compileToIR(), failing the test on any compiler
+   * error
+   */
+  public static IRProgram generateIR(Path file) {
+    List<CompilerError> errors = new ArrayList<>();
+    Program program = Compiler.createProgramFromFiles(Collections.singletonList(file.toString()),
+                                                      Collections.emptyList(), errors);
+    assertTrue(errors.toString(), errors.isEmpty());
+    errors.addAll(program.nameErrors());
+    errors.addAll(program.semanticErrors());
+    assertTrue(errors.toString(), errors.isEmpty());
+    return program.genIR();
+  }
+
+  /**
+   * An interpreter configuration for the given mode with empty input and
+   * in-memory output
+   */
+  public static InterpreterConfig memoryConfig(ExecutionMode mode) {
+    return new InterpreterConfig(mode).setIO(IOContext.memory(""));
+  }
+
   public static void testValidSyntax(File directory, String filename) {
     try {
       Util.parse(new File(directory, filename));
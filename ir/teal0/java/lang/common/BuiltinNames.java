@@ -35,15 +35,20 @@ public final class BuiltinNames {
 	public static final Operation INT_OR = ARITHMETIC_BINOP("__builtin_int_logical_or");
 
 	public static final Operation CONCAT = new Operation("concat", STRING, STRING, STRING);
-	public static final Operation PRINT = new Operation("print", ANY, ANY);
-	public static final Operation READ = new Operation("read", STRING);
+	public static final Operation PRINT = new Operation("print", ANY, ANY).impure();
+	public static final Operation READ = new Operation("read", STRING).impure();
 
 	// Additional builtins
 	public static final Operation STRING_TO_INT = new Operation("string_to_int", INT, STRING);
 	public static final Operation INT_TO_STRING = new Operation("int_to_string", STRING, INT);
 	public static final Operation CAN_CONVERT_TO_INT = new Operation("can_convert_to_int", INT, STRING);
 	public static final Operation ARRAY_LENGTH = new Operation("array_length", INT, ARRAY);
-	public static final Operation TIME = new Operation("time", INT);
+	public static final Operation TIME = new Operation("time", INT).impure();
+	// Read all remaining lines / whitespace-separated integers from stdin
+	public static final Operation READ_LINES = new Operation("read_lines", ARRAY).impure();
+	public static final Operation READ_INTS = new Operation("read_ints", ARRAY).impure();
+	// Write the globals to the heap snapshot of the run, if any; 1 if written
+	public static final Operation CHECKPOINT = new Operation("checkpoint", INT).impure();
 
 
 	private static ArrayList<Operation> operations;
@@ -64,6 +69,7 @@ public final class BuiltinNames {
 		private String name;
 		private String ret_type;
 		private String[] arg_types;
+		private boolean pure = true;
 
 		public Operation(String name, String ret_type, String ... arg_types) {
 			this.name = name;
@@ -83,6 +89,22 @@ public final class BuiltinNames {
 		public String[] getArgumentTypes() {
 			return this.arg_types;
 		}
+
+		/**
+		 * Whether the result depends on the arguments only, and the
+		 * operation has no effect besides its result
+		 */
+		public boolean isPure() {
+			return this.pure;
+		}
+
+		/**
+		 * Mark this operation as interacting with the world, see isPure()
+		 */
+		Operation impure() {
+			this.pure = false;
+			return this;
+		}
 	}
 
 	public static Operation BINOP(String name, String ret_type, String lhs_type, String rhs_type) {
@@ -1,12 +1,22 @@
 package lang.common;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.function.Supplier;
 
 public class Debug {
 	private static boolean debugInterpreter = false;
 	private static boolean debugIRGen = false;
-	private static Debug logger = new Debug();
-	private PrintStream out = System.out;
+	private static final Debug logger = new Debug();
+	// per thread, so that concurrent runs can keep their logs apart
+	private final ThreadLocal<PrintStream> out = ThreadLocal.withInitial(() -> System.out);
 
 	private Debug() {
 		String debugOpts = System.getenv("TEAL_DEBUG");
@@ -18,15 +28,232 @@ public class Debug {
 		}
 	}
 
+	/**
+	 * Whether interpreter debug output is on.  Callers should check this before
+	 * building expensive debug messages.
+	 */
+	public static boolean isDebuggingInterpreter() {
+		return debugInterpreter;
+	}
+
+	/**
+	 * Send the debug output of the current thread to the given stream
+	 * (System.out by default)
+	 */
+	public static void setOutput(PrintStream stream) {
+		logger.out.set(stream);
+	}
+
 	public static void dbgi(String str) {
 		if (debugInterpreter) {
-			logger.out.println("[INTERP] " + str);
+			logger.out.get().println("[INTERP] " + str);
+		}
+	}
+
+	/**
+	 * Lazy variant of dbgi(String): only builds the message if debug output is on.
+	 * For one-off messages, e.g. when the JIT compiles a function.  Hot loops should
+	 * read isDebuggingInterpreter() once and guard dbgi(String) with it instead,
+	 * as a capturing lambda costs an allocation per call.
+	 */
+	public static void dbgi(Supplier<String> str) {
+		if (debugInterpreter) {
+			logger.out.get().println("[INTERP] " + str.get());
 		}
 	}
 
 	public static void dbgt(String str) {
 		if (debugInterpreter) {
-			logger.out.println("[IRGEN] " + str);
+			logger.out.get().println("[IRGEN] " + str);
+		}
+	}
+
+	// ----------------------------------------
+	// Execution tracing
+	//
+	// When enabled, the interpreter records typed events into a bounded ring buffer
+	// (keeping the most recent events), which can be dumped as NDJSON or in a compact
+	// binary format.  When disabled, each trace point costs one static field read.
+	// There is one buffer for the whole process; concurrent runs share it.
+
+	public enum TraceEvent {
+		CALL,		// subject: function name; value: number of arguments
+		RETURN,		// subject: function name
+		BRANCH,		// subject: function name; value: number of the target block
+		BUILTIN		// subject: builtin operation name; value: number of arguments
+	}
+
+	public static final int DEFAULT_TRACE_CAPACITY = 1 << 16;
+
+	private static TraceBuffer traceBuffer = null;
+
+	public static boolean isTracing() {
+		return traceBuffer != null;
+	}
+
+	/**
+	 * Start recording trace events, discarding any previously recorded ones
+	 *
+	 * @param capacity Maximum number of events to keep
+	 */
+	public static void enableTracing(int capacity) {
+		traceBuffer = new TraceBuffer(capacity);
+	}
+
+	public static void disableTracing() {
+		traceBuffer = null;
+	}
+
+	/**
+	 * Record a trace event, if tracing is on.
+	 *
+	 * Trace points in hot code should check isTracing() first, unless all arguments
+	 * are available without computation.
+	 */
+	public static void trace(TraceEvent event, String subject, long value) {
+		TraceBuffer buf = traceBuffer;
+		if (buf != null) {
+			buf.record(event, subject, value);
+		}
+	}
+
+	/**
+	 * Write all recorded events to a file.  Files whose names end in ".ndjson" or
+	 * ".json" receive one JSON object per line; all others use the binary format
+	 * described at TraceBuffer.writeBinary().
+	 */
+	public static void dumpTrace(String filename) throws IOException {
+		TraceBuffer buf = traceBuffer;
+		if (buf == null) {
+			return;
+		}
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename))) {
+			if (filename.endsWith(".ndjson") || filename.endsWith(".json")) {
+				buf.writeNDJSON(out);
+			} else {
+				buf.writeBinary(out);
+			}
+		}
+	}
+
+	static final class TraceBuffer {
+		private static final byte[] MAGIC = "TEALTRC1".getBytes(StandardCharsets.US_ASCII);
+
+		private final byte[] events;
+		private final String[] subjects;
+		private final long[] values;
+		private final long[] times;
+		private long recorded = 0; // total number of recorded events, including overwritten ones
+
+		TraceBuffer(int capacity) {
+			if (capacity <= 0) {
+				throw new IllegalArgumentException("Trace capacity must be positive");
+			}
+			this.events = new byte[capacity];
+			this.subjects = new String[capacity];
+			this.values = new long[capacity];
+			this.times = new long[capacity];
+		}
+
+		synchronized void record(TraceEvent event, String subject, long value) {
+			int i = (int) (recorded % events.length);
+			events[i] = (byte) event.ordinal();
+			subjects[i] = subject;
+			values[i] = value;
+			times[i] = System.nanoTime();
+			++recorded;
+		}
+
+		private long first() {
+			return Math.max(0, recorded - events.length);
+		}
+
+		synchronized void writeNDJSON(OutputStream out) {
+			PrintWriter w = new PrintWriter(new java.io.OutputStreamWriter(out, StandardCharsets.UTF_8));
+			TraceEvent[] kinds = TraceEvent.values();
+			for (long seq = first(); seq < recorded; ++seq) {
+				int i = (int) (seq % events.length);
+				w.print("{\"seq\":" + seq
+					+ ",\"t\":" + times[i]
+					+ ",\"event\":\"" + kinds[events[i]].name().toLowerCase() + "\""
+					+ ",\"subject\":");
+				writeJSONString(w, subjects[i]);
+				w.println(",\"value\":" + values[i] + "}");
+			}
+			w.flush();
+		}
+
+		private static void writeJSONString(PrintWriter w, String s) {
+			if (s == null) {
+				w.print("null");
+				return;
+			}
+			w.print('"');
+			for (int k = 0; k < s.length(); ++k) {
+				char c = s.charAt(k);
+				if (c == '"' || c == '\\') {
+					w.print('\\');
+					w.print(c);
+				} else if (c < 0x20) {
+					w.printf("\\u%04x", (int) c);
+				} else {
+					w.print(c);
+				}
+			}
+			w.print('"');
+		}
+
+		/**
+		 * Binary format:
+		 *   "TEALTRC1"
+		 *   varint #subjects, then each subject as (varint #bytes, UTF-8 bytes)
+		 *   varint #events, varint sequence number of the first event,
+		 *   long time of the first event (big endian, ns),
+		 *   then per event: u1 event, varint subject index,
+		 *                   zigzag varint value, varint ns since the previous event
+		 */
+		synchronized void writeBinary(OutputStream os) throws IOException {
+			DataOutputStream out = new DataOutputStream(os);
+			long first = first();
+
+			HashMap<String, Integer> index = new HashMap<>();
+			java.util.ArrayList<String> table = new java.util.ArrayList<>();
+			for (long seq = first; seq < recorded; ++seq) {
+				String s = String.valueOf(subjects[(int) (seq % events.length)]);
+				if (!index.containsKey(s)) {
+					index.put(s, table.size());
+					table.add(s);
+				}
+			}
+
+			out.write(MAGIC);
+			writeVarint(out, table.size());
+			for (String s : table) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeVarint(out, bytes.length);
+				out.write(bytes);
+			}
+			writeVarint(out, recorded - first);
+			writeVarint(out, first);
+			long time = recorded > first ? times[(int) (first % events.length)] : 0;
+			out.writeLong(time);
+			for (long seq = first; seq < recorded; ++seq) {
+				int i = (int) (seq % events.length);
+				out.writeByte(events[i]);
+				writeVarint(out, index.get(String.valueOf(subjects[i])));
+				writeVarint(out, (values[i] << 1) ^ (values[i] >> 63));
+				writeVarint(out, times[i] - time);
+				time = times[i];
+			}
+			out.flush();
+		}
+
+		private static void writeVarint(DataOutputStream out, long v) throws IOException {
+			while ((v & ~0x7fL) != 0) {
+				out.writeByte((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			out.writeByte((int) v);
 		}
 	}
 }
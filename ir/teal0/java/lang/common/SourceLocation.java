@@ -58,6 +58,11 @@ public class SourceLocation implements Comparable<SourceLocation> {
 		return !(this == UNKNOWN || this == BUILTIN);
 	}
 
+	public String
+	getFile() {
+		return this.file;
+	}
+
 	public int
 	getStartLine() {
 		return this.startLine;
@@ -1,10 +1,9 @@
 package lang.ir;
 
 import lang.common.BuiltinNames;
+import lang.common.Debug;
 import java.util.HashMap;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.time.Instant;
 
 
@@ -25,47 +24,73 @@ public final class Builtins {
     // Declare method implementations
     static {
 	// If you want to add a new builtin operation, declare it below.
-	INT_OP(BuiltinNames.INT_ADD, ctx -> ctx.getInt(0) + ctx.getInt(1));
-	INT_OP(BuiltinNames.INT_SUB, ctx -> ctx.getInt(0) - ctx.getInt(1));
-	INT_OP(BuiltinNames.INT_MUL, ctx -> ctx.getInt(0) * ctx.getInt(1));
-	INT_OP(BuiltinNames.INT_DIV, ctx -> ctx.getInt(0) / ctx.getNonzeroInt(1, "Division by 0"));
-	INT_OP(BuiltinNames.INT_MOD, ctx -> ctx.getInt(0) % ctx.getNonzeroInt(1, "Division by 0"));
-
-	BOOL_OP(BuiltinNames.ANY_EQ, ctx -> ctx.get(0).equalsIR(ctx.get(1)));
-	BOOL_OP(BuiltinNames.ANY_NEQ, ctx -> !ctx.get(0).equalsIR(ctx.get(1)));
-
-	BOOL_OP(BuiltinNames.INT_LEQ, ctx -> ctx.getInt(0) <= ctx.getInt(1));
-	BOOL_OP(BuiltinNames.INT_GEQ, ctx -> ctx.getInt(0) >= ctx.getInt(1));
-	BOOL_OP(BuiltinNames.INT_LT, ctx -> ctx.getInt(0) < ctx.getInt(1));
-	BOOL_OP(BuiltinNames.INT_GT, ctx -> ctx.getInt(0) > ctx.getInt(1));
-	BOOL_OP(BuiltinNames.INT_AND, ctx -> (ctx.getInt(0) != 0 && ctx.getInt(1) != 0));
-	BOOL_OP(BuiltinNames.INT_OR, ctx -> (ctx.getInt(0) != 0 || ctx.getInt(1) != 0));
-	VOID_OP(BuiltinNames.PRINT, ctx -> System.out.println(ctx.get(0).toShortString()));
+	INT_OP(BuiltinNames.INT_ADD, (x, y) -> x + y);
+	INT_OP(BuiltinNames.INT_SUB, (x, y) -> x - y);
+	INT_OP(BuiltinNames.INT_MUL, (x, y) -> x * y);
+	INT_OP(BuiltinNames.INT_DIV, (x, y) -> x / nonzero(y, "Division by 0"));
+	INT_OP(BuiltinNames.INT_MOD, (x, y) -> x % nonzero(y, "Division by 0"));
+
+	OP(BuiltinNames.ANY_EQ, (ctx, x, y) -> bool(x.equalsIR(y)));
+	OP(BuiltinNames.ANY_NEQ, (ctx, x, y) -> bool(!x.equalsIR(y)));
+
+	BOOL_OP(BuiltinNames.INT_LEQ, (x, y) -> x <= y);
+	BOOL_OP(BuiltinNames.INT_GEQ, (x, y) -> x >= y);
+	BOOL_OP(BuiltinNames.INT_LT, (x, y) -> x < y);
+	BOOL_OP(BuiltinNames.INT_GT, (x, y) -> x > y);
+	BOOL_OP(BuiltinNames.INT_AND, (x, y) -> (x != 0 && y != 0));
+	BOOL_OP(BuiltinNames.INT_OR, (x, y) -> (x != 0 || y != 0));
+	VOID_OP(BuiltinNames.PRINT, (ctx, x) -> {
+		x.writeTo(ctx.out());
+		ctx.out().newline();
+	    });
 	OP(BuiltinNames.READ, ctx -> {
+		// make prompts visible before blocking
+		ctx.out().flush();
 		try {
-		    // How many objects does one need to read a line from stdin in Java? ;)
-		    String line = (new BufferedReader(new InputStreamReader(System.in))).readLine();
-		    return new IRStringValue(line);
+		    return new IRStringValue(ctx.in().readLine());
 		} catch (IOException e) {
 		    throw new InterpreterException("Exception while executing read().");
 		}
 	    });
-	OP(BuiltinNames.STRING_TO_INT, ctx -> new IRIntegerValue(Integer.parseInt(ctx.getString(0))));
-	OP(BuiltinNames.INT_TO_STRING, ctx -> new IRStringValue(Long.toString(ctx.getInt(0))));
-	OP(BuiltinNames.CAN_CONVERT_TO_INT, ctx -> {
+	OP(BuiltinNames.READ_LINES, ctx -> {
+		ctx.out().flush();
+		try {
+		    return IRArray.ofStrings(ctx.in().readLines(ctx.heap()));
+		} catch (IOException e) {
+		    throw new InterpreterException("Exception while executing read_lines().");
+		}
+	    });
+	OP(BuiltinNames.READ_INTS, ctx -> {
+		ctx.out().flush();
+		try {
+		    return IRArray.ofInts(ctx.in().readInts(ctx.heap()));
+		} catch (IOException e) {
+		    throw new InterpreterException("Exception while executing read_ints().");
+		} catch (NumberFormatException e) {
+		    throw new InterpreterException(e.getMessage());
+		}
+	    });
+	OP(BuiltinNames.STRING_TO_INT, (ctx, s) -> new IRIntegerValue(Integer.parseInt(asString(s))));
+	OP(BuiltinNames.INT_TO_STRING, (ctx, x) -> new IRStringValue(Long.toString(asInt(x))));
+	OP(BuiltinNames.CAN_CONVERT_TO_INT, (ctx, s) -> {
 			// Regex copied from the scanner specification
-			Boolean can_convert = ctx.getString(0).matches("-?(0|[1-9][0-9]*)");
+			Boolean can_convert = asString(s).matches("-?(0|[1-9][0-9]*)");
 			if (can_convert) {
 				return new IRIntegerValue(1);
 			} else {
 				return new IRIntegerValue(0);
 			}
 		});
-	OP(BuiltinNames.CONCAT, ctx -> new IRStringValue(ctx.getString(0).concat(ctx.getString(1))));
-	OP(BuiltinNames.ARRAY_LENGTH, ctx -> new IRIntegerValue(ctx.getArray(0).getSize()));
+	OP(BuiltinNames.CONCAT, (ctx, s, t) -> {
+		String result = asString(s).concat(asString(t));
+		ctx.heap().allocate(HeapUsage.stringBytes(result.length()));
+		return new IRStringValue(result);
+	    });
+	OP(BuiltinNames.ARRAY_LENGTH, (ctx, a) -> new IRIntegerValue(asArray(a).getSize()));
 	INT_OP(BuiltinNames.TIME, ctx -> {
 			return System.nanoTime();
 		});
+	OP(BuiltinNames.CHECKPOINT, ctx -> bool(HeapSnapshot.checkpoint(ctx)));
     }
 
     private static Type<?> translateType(String typename) {
@@ -87,6 +112,32 @@ public final class Builtins {
 	return op;
     }
 
+    // ----------------------------------------
+    // Argument access for implementations.  These cast without checking; see Operation.link*()
+
+    static long asInt(IRValue v) {
+	return ((IRIntegerValue) v).asLong();
+    }
+
+    static String asString(IRValue v) {
+	return ((IRStringValue) v).asString();
+    }
+
+    static IRArray asArray(IRValue v) {
+	return (IRArray) v;
+    }
+
+    static long nonzero(long i, String msg) throws InterpreterException {
+	if (i == 0) {
+	    throw new InterpreterException(msg);
+	}
+	return i;
+    }
+
+    static IRIntegerValue bool(boolean b) {
+	return IRIntegerValue.valueOf(b ? 1 : 0);
+    }
+
     /**
      * Dynamic type checking for a Teal type, for built-in operations
      */
@@ -100,6 +151,10 @@ public final class Builtins {
 	    Builtins.typeTranslator.put(name, this);
 	}
 
+	public String getName() {
+	    return this.typename;
+	}
+
 	public void checkArg(IRValue v, String op, int index) throws InterpreterException {
 	    if (!this.classobj.isInstance(v)) {
 		throw new InterpreterException("IR error: while calling builtin operation " + op + ", parameter #" + index
@@ -116,17 +171,37 @@ public final class Builtins {
 	}
     }
 
+    // ----------------------------------------
+    // Arity-specialised implementations of built-in operations.
+    // ctx is the context of the caller; implementations must not access its frame.
+
+    public static interface Nullary {
+	public IRValue apply(IRFunctionEvalCtx ctx) throws InterpreterException;
+    }
+
+    public static interface Unary {
+	public IRValue apply(IRFunctionEvalCtx ctx, IRValue x) throws InterpreterException;
+    }
+
+    public static interface Binary {
+	public IRValue apply(IRFunctionEvalCtx ctx, IRValue x, IRValue y) throws InterpreterException;
+    }
+
     /**
      * Represents a Java implementation of a built-in Teal operation, with linkage information
      */
     public static final class Operation {
-	private BuiltinImplementation<IRValue> implementation;
+	// Exactly one of these is set, depending on the arity of the operation
+	private Nullary nullary;
+	private Unary unary;
+	private Binary binary;
 	private String name;
 	private Type<?>[] arg_types;
 	private Type<?> ret_type;
+	private boolean check_return; // false if the helper that declared the operation guarantees the return type
+	private boolean pure;
 
-	Operation(BuiltinNames.Operation op, BuiltinImplementation<IRValue> impl) {
-	    this.implementation = impl;
+	private Operation(BuiltinNames.Operation op, boolean check_return) {
 	    String[] arg_type_names = op.getArgumentTypes();
 	    this.arg_types = new Type<?>[arg_type_names.length];
 	    for (int i = 0; i < arg_type_names.length; i++) {
@@ -134,10 +209,85 @@ public final class Builtins {
 	    }
 	    this.ret_type = Builtins.translateType(op.getReturnType());
 	    this.name = op.getName();
+	    this.check_return = check_return;
+	    this.pure = op.isPure();
 
 	    opTranslator.put(op.getName(), this);
 	}
 
+	Operation(BuiltinNames.Operation op, Nullary impl, boolean check_return) {
+	    this(op, check_return);
+	    this.nullary = impl;
+	    checkArity(0);
+	}
+
+	Operation(BuiltinNames.Operation op, Unary impl, boolean check_return) {
+	    this(op, check_return);
+	    this.unary = impl;
+	    checkArity(1);
+	}
+
+	Operation(BuiltinNames.Operation op, Binary impl, boolean check_return) {
+	    this(op, check_return);
+	    this.binary = impl;
+	    checkArity(2);
+	}
+
+	private void checkArity(int arity) {
+	    if (this.arg_types.length != arity) {
+		throw new RuntimeException("Interpreter initalisation error: built-in operation " + this.name
+					   + " declared with " + this.arg_types.length + " parameters but implemented with " + arity);
+	    }
+	}
+
+	public String getName() {
+	    return this.name;
+	}
+
+	public Type<?> getReturnType() {
+	    return this.ret_type;
+	}
+
+	public int getArity() {
+	    return this.arg_types.length;
+	}
+
+	/**
+	 * See BuiltinNames.Operation.isPure()
+	 */
+	public boolean isPure() {
+	    return this.pure;
+	}
+
+	/**
+	 * The Teal type of the given parameter
+	 */
+	public Type<?> getArgType(int index) {
+	    return this.arg_types[index];
+	}
+
+	private void checkArgs(IRValue x) throws InterpreterException {
+	    this.arg_types[0].checkArg(x, this.name, 0);
+	}
+
+	private void checkArgs(IRValue x, IRValue y) throws InterpreterException {
+	    this.arg_types[0].checkArg(x, this.name, 0);
+	    this.arg_types[1].checkArg(y, this.name, 1);
+	}
+
+	private void trace() {
+	    if (Debug.isTracing()) {
+		Debug.trace(Debug.TraceEvent.BUILTIN, this.name, this.arg_types.length);
+	    }
+	}
+
+	private IRValue checkReturn(IRValue v) throws InterpreterException {
+	    if (this.check_return) {
+		this.ret_type.checkReturn(v, this.name);
+	    }
+	    return v;
+	}
+
 	/**
 	 * Run the function
 	 *
@@ -151,86 +301,111 @@ public final class Builtins {
 	    for (int i = 0; i < ctx.getArgsNr(); i++) {
 		this.arg_types[i].checkArg(ctx.getArg(i), this.name, i);
 	    }
-	    IRValue v = this.implementation.apply(new Args(ctx));
-	    this.ret_type.checkReturn(v, this.name);
-	    return v;
-	}
-
-	/**
-	 * Represents actual parameters passed to evaluate the builtin operation
-	 */
-	public final class Args {
-	    IRFunctionEvalCtx context;
-	    public Args(IRFunctionEvalCtx ctx) {
-		this.context = ctx;
+	    switch (this.arg_types.length) {
+	    case 0:
+		return checkReturn(this.nullary.apply(ctx));
+	    case 1:
+		return checkReturn(this.unary.apply(ctx, ctx.getArg(0)));
+	    default:
+		return checkReturn(this.binary.apply(ctx, ctx.getArg(0), ctx.getArg(1)));
 	    }
+	}
 
-	    /**
-	     * Returns one of the arguments
-	     */
-	    public IRValue get(int offset) {
-		return this.context.getArg(offset);
-	    }
+	// ----------------------------------------
+	// Linking, for call sites that know their callee
+	//
+	// Linked operations take their arguments directly, without a callee context.
+	// If checkArgs is false, the caller guarantees the argument types (e.g., through
+	// the IR types of the arguments), and the arguments are not checked up front.
+	// Should the guarantee fail anyway (as Teal-0 does not enforce IR types), the
+	// implementation fails on a cast, and we report the same error as eval().
+
+	public Nullary linkNullary() {
+	    final Nullary impl = this.nullary;
+	    return ctx -> {
+		trace();
+		return checkReturn(impl.apply(ctx));
+	    };
+	}
 
-	    /**
-	     * Returns one of the arguments and translates it to long
-	     */
-	    public long getInt(int offset) {
-		return ((IRIntegerValue) this.get(offset)).asLong();
+	public Unary linkUnary(boolean checkArgs) {
+	    final Unary impl = this.unary;
+	    if (checkArgs) {
+		return (ctx, x) -> {
+		    trace();
+		    checkArgs(x);
+		    return checkReturn(impl.apply(ctx, x));
+		};
 	    }
-
-            /**
-             * Returns an array argument, with dynamic checking
-             */
-            public IRArray getArray(int offset) {
-                return (IRArray) this.get(offset);
-            }
-
-	    /**
-	     * Returns one of the arguments and translates it to long
-	     */
-	    public long getNonzeroInt(int offset, String msg) throws InterpreterException {
-		long i = this.getInt(offset);
-		if (i == 0) {
-		    throw new InterpreterException(msg);
+	    return (ctx, x) -> {
+		trace();
+		try {
+		    return checkReturn(impl.apply(ctx, x));
+		} catch (ClassCastException exn) {
+		    checkArgs(x);
+		    throw exn;
 		}
-		return i;
-	    }
+	    };
+	}
 
-	    /**
-	     * Returns one of the arguments and translates it to String
-	     */
-	    public String getString(int offset) {
-		return ((IRStringValue) this.get(offset)).asString();
+	public Binary linkBinary(boolean checkArgs) {
+	    final Binary impl = this.binary;
+	    if (checkArgs) {
+		return (ctx, x, y) -> {
+		    trace();
+		    checkArgs(x, y);
+		    return checkReturn(impl.apply(ctx, x, y));
+		};
 	    }
+	    return (ctx, x, y) -> {
+		trace();
+		try {
+		    return checkReturn(impl.apply(ctx, x, y));
+		} catch (ClassCastException exn) {
+		    checkArgs(x, y);
+		    throw exn;
+		}
+	    };
 	}
     }
 
     /**
      * Helper operation for declaring and linking a builtin implementation.
      *
-     * This is the general-purpose version.
+     * These are the general-purpose versions.
      */
-    private static void OP(BuiltinNames.Operation op, BuiltinImplementation<IRValue> impl) {
-	new Operation(op, impl);
+    private static void OP(BuiltinNames.Operation op, Nullary impl) {
+	new Operation(op, impl, true);
+    }
+
+    private static void OP(BuiltinNames.Operation op, Unary impl) {
+	new Operation(op, impl, true);
+    }
+
+    private static void OP(BuiltinNames.Operation op, Binary impl) {
+	new Operation(op, impl, true);
     }
 
     /**
      * Helper operation for declaring and linking a builtin implementation that returns a Long.
      *
-     * Automatically converts the Long into the IR format.
+     * Automatically converts the arguments and the result from and into the IR format.
      */
-    private static void INT_OP(BuiltinNames.Operation op, BuiltinImplementation<Long> impl) {
-	new Operation(op, ctx -> new IRIntegerValue(impl.apply(ctx)));
+    private static void INT_OP(BuiltinNames.Operation op, IntNullaryImplementation impl) {
+	new Operation(op, (Nullary) ctx -> IRIntegerValue.valueOf(impl.apply(ctx)), false);
+    }
+
+    private static void INT_OP(BuiltinNames.Operation op, IntBinaryImplementation impl) {
+	new Operation(op, (Binary) (ctx, x, y) -> IRIntegerValue.valueOf(impl.apply(asInt(x), asInt(y))), false);
     }
 
     /**
      * Helper operation for declaring and linking a builtin implementation that returns a Boolean.
      *
-     * Automatically converts the Boolean into the IR format.
+     * Automatically converts the arguments and the result from and into the IR format.
      */
-    private static void BOOL_OP(BuiltinNames.Operation op, BuiltinImplementation<Boolean> impl) {
-	new Operation(op, ctx -> new IRIntegerValue(impl.apply(ctx) ? 1 : 0));
+    private static void BOOL_OP(BuiltinNames.Operation op, BoolBinaryImplementation impl) {
+	new Operation(op, (Binary) (ctx, x, y) -> bool(impl.apply(asInt(x), asInt(y))), false);
     }
 
     /**
@@ -238,16 +413,24 @@ public final class Builtins {
      *
      * Automatically returns an IR null value.
      */
-    private static void VOID_OP(BuiltinNames.Operation op, BuiltinConsumerImplementation impl) {
-	new Operation(op, ctx -> { impl.apply(ctx); return new IRNullValue(null); });
+    private static void VOID_OP(BuiltinNames.Operation op, VoidUnaryImplementation impl) {
+	new Operation(op, (Unary) (ctx, x) -> { impl.apply(ctx, x); return new IRNullValue(null); }, false);
+    }
+
+    static interface IntNullaryImplementation {
+	public long apply(IRFunctionEvalCtx ctx) throws InterpreterException;
+    }
+
+    static interface IntBinaryImplementation {
+	public long apply(long x, long y) throws InterpreterException;
     }
 
-    static interface BuiltinImplementation<T> {
-	public T apply(Operation.Args args) throws InterpreterException;
+    static interface BoolBinaryImplementation {
+	public boolean apply(long x, long y) throws InterpreterException;
     }
 
-    static interface BuiltinConsumerImplementation {
-	public void apply(Operation.Args args) throws InterpreterException;
+    static interface VoidUnaryImplementation {
+	public void apply(IRFunctionEvalCtx ctx, IRValue x) throws InterpreterException;
     }
 
     static {
@@ -0,0 +1,423 @@
+package lang.ir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Minimal writer for JVM class files, sufficient for the code generated by the IR JIT (see IRJit.jrag).
+ *
+ * Writes class file version 49 (Java 5).  The JVM verifies such classes by type inference,
+ * so we need not compute StackMapTable frames.
+ */
+public final class ClassFileWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // Opcodes
+    public static final int ICONST_0 = 0x03;
+    public static final int LCONST_0 = 0x09;
+    public static final int LCONST_1 = 0x0a;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC_W = 0x13;
+    public static final int LDC2_W = 0x14;
+    public static final int ILOAD = 0x15;
+    public static final int LLOAD = 0x16;
+    public static final int ALOAD = 0x19;
+    public static final int ALOAD_0 = 0x2a;
+    public static final int LSTORE = 0x37;
+    public static final int AASTORE = 0x53;
+    public static final int DUP = 0x59;
+    public static final int LADD = 0x61;
+    public static final int LSUB = 0x65;
+    public static final int LMUL = 0x69;
+    public static final int LDIV = 0x6d;
+    public static final int LREM = 0x71;
+    public static final int LCMP = 0x94;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IFLT = 0x9b;
+    public static final int IFGE = 0x9c;
+    public static final int IFGT = 0x9d;
+    public static final int IFLE = 0x9e;
+    public static final int GOTO = 0xa7;
+    public static final int TABLESWITCH = 0xaa;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int ANEWARRAY = 0xbd;
+    public static final int ATHROW = 0xbf;
+    public static final int WIDE = 0xc4;
+
+    private static final int CLASS_FILE_MAJOR_VERSION = 49;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolSize = 1;
+    private final ArrayList<byte[]> methods = new ArrayList<>();
+
+    // ----------------------------------------
+    // Constant pool
+
+    private int lookup(String key) {
+	Integer index = poolIndex.get(key);
+	return index == null ? 0 : index;
+    }
+
+    private int add(String key) {
+	int index = poolSize++;
+	poolIndex.put(key, index);
+	return index;
+    }
+
+    public int utf8(String s) {
+	String key = "utf8:" + s;
+	int index = lookup(key);
+	if (index != 0) {
+	    return index;
+	}
+	try {
+	    pool.writeByte(CONSTANT_Utf8);
+	    pool.writeUTF(s);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return add(key);
+    }
+
+    public int integer(int v) {
+	String key = "int:" + v;
+	int index = lookup(key);
+	if (index != 0) {
+	    return index;
+	}
+	try {
+	    pool.writeByte(CONSTANT_Integer);
+	    pool.writeInt(v);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return add(key);
+    }
+
+    /**
+     * A CONSTANT_Long entry, for LDC2_W.  Takes up two constant pool indices.
+     */
+    public int longConstant(long v) {
+	String key = "long:" + v;
+	int index = lookup(key);
+	if (index != 0) {
+	    return index;
+	}
+	try {
+	    pool.writeByte(CONSTANT_Long);
+	    pool.writeLong(v);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	index = add(key);
+	++poolSize;
+	return index;
+    }
+
+    /**
+     * @param internalName Class name in internal form, e.g., "java/lang/Object"
+     */
+    public int classRef(String internalName) {
+	String key = "class:" + internalName;
+	int index = lookup(key);
+	if (index != 0) {
+	    return index;
+	}
+	int name = utf8(internalName);
+	try {
+	    pool.writeByte(CONSTANT_Class);
+	    pool.writeShort(name);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return add(key);
+    }
+
+    public int nameAndType(String name, String descriptor) {
+	String key = "nat:" + name + ":" + descriptor;
+	int index = lookup(key);
+	if (index != 0) {
+	    return index;
+	}
+	int n = utf8(name);
+	int d = utf8(descriptor);
+	try {
+	    pool.writeByte(CONSTANT_NameAndType);
+	    pool.writeShort(n);
+	    pool.writeShort(d);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return add(key);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+	String key = "method:" + owner + "." + name + ":" + descriptor;
+	int index = lookup(key);
+	if (index != 0) {
+	    return index;
+	}
+	int c = classRef(owner);
+	int nt = nameAndType(name, descriptor);
+	try {
+	    pool.writeByte(CONSTANT_Methodref);
+	    pool.writeShort(c);
+	    pool.writeShort(nt);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return add(key);
+    }
+
+    // ----------------------------------------
+    // Methods
+
+    public Code newCode() {
+	return new Code();
+    }
+
+    /**
+     * Bytecode of a single method, with forward-referencable labels
+     */
+    public final class Code {
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final ArrayList<Integer> labels = new ArrayList<>(); // label -> offset, or -1 if unbound
+	private final ArrayList<int[]> fixups = new ArrayList<>(); // { offset of branch instruction, label }
+	private final ArrayList<int[]> switchFixups = new ArrayList<>(); // { offset of 32 bit offset, offset of switch, label }
+
+	public Code op(int opcode) {
+	    bytes.write(opcode);
+	    return this;
+	}
+
+	public Code u1(int v) {
+	    bytes.write(v);
+	    return this;
+	}
+
+	public Code u2(int v) {
+	    bytes.write(v >> 8);
+	    bytes.write(v);
+	    return this;
+	}
+
+	public Code u4(int v) {
+	    return u2(v >>> 16).u2(v & 0xffff);
+	}
+
+	/**
+	 * Emit a load or store of a local variable, widened if necessary
+	 */
+	public Code local(int opcode, int local) {
+	    if (local > 255) {
+		return op(WIDE).op(opcode).u2(local);
+	    }
+	    return op(opcode).u1(local);
+	}
+
+	public Code aload(int local) {
+	    if (local <= 3) {
+		return op(ALOAD_0 + local);
+	    }
+	    return local(ALOAD, local);
+	}
+
+	public Code iload(int local) {
+	    return local(ILOAD, local);
+	}
+
+	public Code lload(int local) {
+	    return local(LLOAD, local);
+	}
+
+	public Code lstore(int local) {
+	    return local(LSTORE, local);
+	}
+
+	public Code pushInt(int v) {
+	    if (v >= -1 && v <= 5) {
+		return op(ICONST_0 + v);
+	    } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+		return op(BIPUSH).u1(v);
+	    } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+		return op(SIPUSH).u2(v);
+	    }
+	    return op(LDC_W).u2(integer(v));
+	}
+
+	public Code pushLong(long v) {
+	    if (v == 0 || v == 1) {
+		return op(LCONST_0 + (int) v);
+	    }
+	    return op(LDC2_W).u2(longConstant(v));
+	}
+
+	public Code anewarray(String internalName) {
+	    return op(ANEWARRAY).u2(classRef(internalName));
+	}
+
+	public Code invokestatic(String owner, String name, String descriptor) {
+	    return op(INVOKESTATIC).u2(methodRef(owner, name, descriptor));
+	}
+
+	public Code invokespecial(String owner, String name, String descriptor) {
+	    return op(INVOKESPECIAL).u2(methodRef(owner, name, descriptor));
+	}
+
+	public int newLabel() {
+	    labels.add(-1);
+	    return labels.size() - 1;
+	}
+
+	public void bind(int label) {
+	    labels.set(label, bytes.size());
+	}
+
+	/**
+	 * Emit a branch instruction with a 16 bit offset (e.g., GOTO, IFEQ) to the given label
+	 */
+	public Code jump(int opcode, int label) {
+	    fixups.add(new int[] { bytes.size(), label });
+	    return op(opcode).u2(0);
+	}
+
+	/**
+	 * Emit a TABLESWITCH on the int on the stack, jumping to labels[i - low]
+	 * for i in low .. low + labels.length - 1, and to defaultLabel otherwise
+	 */
+	public Code tableswitch(int low, int defaultLabel, int ... labels) {
+	    int at = bytes.size();
+	    op(TABLESWITCH);
+	    while (bytes.size() % 4 != 0) {
+		u1(0);
+	    }
+	    switchFixups.add(new int[] { bytes.size(), at, defaultLabel });
+	    u4(0);
+	    u4(low);
+	    u4(low + labels.length - 1);
+	    for (int label : labels) {
+		switchFixups.add(new int[] { bytes.size(), at, label });
+		u4(0);
+	    }
+	    return this;
+	}
+
+	byte[] finish() {
+	    byte[] code = bytes.toByteArray();
+	    for (int[] fixup : fixups) {
+		int at = fixup[0];
+		int target = labels.get(fixup[1]);
+		if (target < 0) {
+		    throw new IllegalStateException("Unbound label " + fixup[1]);
+		}
+		int offset = target - at;
+		if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+		    throw new IllegalStateException("Branch offset out of range; method too large");
+		}
+		code[at + 1] = (byte) (offset >> 8);
+		code[at + 2] = (byte) offset;
+	    }
+	    for (int[] fixup : switchFixups) {
+		int target = labels.get(fixup[2]);
+		if (target < 0) {
+		    throw new IllegalStateException("Unbound label " + fixup[2]);
+		}
+		int offset = target - fixup[1];
+		for (int k = 0; k < 4; k++) {
+		    code[fixup[0] + k] = (byte) (offset >> (24 - 8 * k));
+		}
+	    }
+	    if (code.length >= 65536) {
+		throw new IllegalStateException("Method too large");
+	    }
+	    return code;
+	}
+    }
+
+    public void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, Code code) {
+	byte[] bytecode = code.finish();
+	int nameIndex = utf8(name);
+	int descIndex = utf8(descriptor);
+	int codeAttr = utf8("Code");
+
+	ByteArrayOutputStream m = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(m);
+	try {
+	    out.writeShort(access);
+	    out.writeShort(nameIndex);
+	    out.writeShort(descIndex);
+	    out.writeShort(1); // attributes: Code
+	    out.writeShort(codeAttr);
+	    out.writeInt(12 + bytecode.length);
+	    out.writeShort(maxStack);
+	    out.writeShort(maxLocals);
+	    out.writeInt(bytecode.length);
+	    out.write(bytecode);
+	    out.writeShort(0); // exception table
+	    out.writeShort(0); // attributes
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	methods.add(m.toByteArray());
+    }
+
+    // ----------------------------------------
+    // Class file
+
+    public byte[] toByteArray(int access, String thisClass, String superClass, String ... interfaces) {
+	// Resolve all constants first, so that the constant pool is complete
+	int thisIndex = classRef(thisClass);
+	int superIndex = classRef(superClass);
+	int[] interfaceIndices = new int[interfaces.length];
+	for (int i = 0; i < interfaces.length; i++) {
+	    interfaceIndices[i] = classRef(interfaces[i]);
+	}
+
+	ByteArrayOutputStream c = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(c);
+	try {
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(CLASS_FILE_MAJOR_VERSION);
+	    out.writeShort(poolSize);
+	    pool.flush();
+	    out.write(poolBytes.toByteArray());
+	    out.writeShort(access);
+	    out.writeShort(thisIndex);
+	    out.writeShort(superIndex);
+	    out.writeShort(interfaceIndices.length);
+	    for (int i : interfaceIndices) {
+		out.writeShort(i);
+	    }
+	    out.writeShort(0); // fields
+	    out.writeShort(methods.size());
+	    for (byte[] m : methods) {
+		out.write(m);
+	    }
+	    out.writeShort(0); // attributes
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return c.toByteArray();
+    }
+}
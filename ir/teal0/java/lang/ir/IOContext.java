@@ -0,0 +1,101 @@
+package lang.ir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+/**
+ * Input and output of program runs.
+ *
+ * The builtins read from and print to the channels of the context of their
+ * run (see InterpreterConfig.setIO()).  Runs without a context of their own use
+ * the process streams (process()).  Runs with separate contexts share no I/O
+ * state and can run concurrently.  A context may serve several consecutive
+ * runs, which then continue where the previous one stopped reading.
+ */
+public final class IOContext implements Closeable {
+	private final InputChannel in;
+	private final OutputChannel out;
+	private final boolean owned; // whether close() closes the channels
+
+	public IOContext(InputChannel in, OutputChannel out) {
+		this(in, out, true);
+	}
+
+	private IOContext(InputChannel in, OutputChannel out, boolean owned) {
+		this.in = in;
+		this.out = out;
+		this.owned = owned;
+	}
+
+	/**
+	 * The process streams, as currently set: System.in, whose buffered input
+	 * all runs share, and System.out
+	 */
+	public static IOContext process() {
+		return new IOContext(InputChannel.forStream(System.in), new OutputChannel(System.out), false);
+	}
+
+	/**
+	 * Read the given text; keep all output in memory, see getOutput()
+	 */
+	public static IOContext memory(String input) {
+		return new IOContext(new InputChannel(input), OutputChannel.capture());
+	}
+
+	/**
+	 * Read the given bytes in place; keep all output in memory, see getOutput()
+	 */
+	public static IOContext memory(ByteBuffer input) {
+		return new IOContext(new InputChannel(input, Charset.defaultCharset()), OutputChannel.capture());
+	}
+
+	/**
+	 * Read from and write to files, through NIO channels
+	 *
+	 * @param input The file to read, or null for no input
+	 * @param output The file to write, which is created or replaced
+	 */
+	public static IOContext files(Path input, Path output) throws IOException {
+		InputChannel in = input == null ? new InputChannel("") : InputChannel.fromFile(input);
+		try {
+			return new IOContext(in, OutputChannel.toFile(output));
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	public InputChannel in() {
+		return in;
+	}
+
+	public OutputChannel out() {
+		return out;
+	}
+
+	/**
+	 * All output so far, if this context keeps its output in memory; null
+	 * otherwise.  The result is the context's own storage, not a copy, and
+	 * grows with further output.
+	 */
+	public CharSequence getOutput() {
+		out.flush();
+		return out.getCaptured();
+	}
+
+	/**
+	 * Flush the output; close the channels, unless they are the process
+	 * streams
+	 */
+	@Override
+	public void close() throws IOException {
+		out.flush();
+		if (owned) {
+			out.close();
+			in.close();
+		}
+	}
+}
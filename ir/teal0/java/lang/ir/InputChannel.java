@@ -0,0 +1,317 @@
+package lang.ir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Buffered input of an interpreted program.
+ *
+ * Bytes are read from a channel into a fixed byte buffer and decoded into a
+ * fixed char buffer, both of which are reused for the lifetime of the channel.
+ * Nothing is read ahead beyond these buffers, so all input that the channel
+ * has taken from the underlying stream remains available to later reads.
+ *
+ * There is one channel per input stream (see forStream()), so that runs that
+ * read from the same stream don't lose each other's buffered input.
+ *
+ * Input can also come from memory, as text or as a byte buffer, which is then
+ * decoded in place.
+ *
+ * As with BufferedReader, lines end with "\n", "\r" or "\r\n", and malformed
+ * input is replaced rather than reported.
+ *
+ * readLines() and readInts() charge the run's heap as they read: the result
+ * array when it is allocated and whenever it grows, and each line when it is
+ * read.  Input that exceeds the heap limit thus fails before it is all in
+ * memory.
+ */
+public final class InputChannel implements Closeable {
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static InputStream lastStream = null;
+	private static InputChannel lastChannel = null;
+
+	private final ReadableByteChannel in;
+	private final CharsetDecoder decoder;
+	private final ByteBuffer bytes;		// undecoded input, between position and limit
+	private final CharBuffer chars;		// decoded input, between position and limit
+	private final StringBuilder line = new StringBuilder();
+	private boolean eof = false;		// the channel has no more bytes
+	private boolean drained = false;	// ... and the decoder has been flushed
+	private boolean skipLF = false;		// the last line ended with '\r'
+
+	public InputChannel(InputStream in) {
+		this(Channels.newChannel(in), Charset.defaultCharset(), DEFAULT_CAPACITY);
+	}
+
+	public InputChannel(ReadableByteChannel in, Charset charset, int capacity) {
+		if (capacity < 16) {
+			// must hold any encoded character
+			capacity = 16;
+		}
+		this.in = in;
+		this.decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = ByteBuffer.allocate(capacity);
+		this.chars = CharBuffer.allocate(capacity);
+		this.bytes.flip();
+		this.chars.flip();
+	}
+
+	/**
+	 * A channel that reads the given bytes, without copying them
+	 */
+	public InputChannel(ByteBuffer input, Charset charset) {
+		this.in = null;
+		this.decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = input.slice();
+		this.chars = CharBuffer.allocate(DEFAULT_CAPACITY);
+		this.chars.flip();
+		this.eof = true;
+	}
+
+	/**
+	 * A channel that reads the given text
+	 */
+	public InputChannel(String input) {
+		this.in = null;
+		this.decoder = null;
+		this.bytes = null;
+		this.chars = CharBuffer.wrap(input.toCharArray());
+		this.eof = true;
+		this.drained = true;
+	}
+
+	/**
+	 * A channel that reads the given file
+	 */
+	public static InputChannel fromFile(Path path) throws IOException {
+		return new InputChannel(FileChannel.open(path, StandardOpenOption.READ), Charset.defaultCharset(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * The channel for the given stream; the same one for consecutive calls with
+	 * the same stream
+	 */
+	public static synchronized InputChannel forStream(InputStream in) {
+		if (in != lastStream) {
+			lastStream = in;
+			lastChannel = new InputChannel(in);
+		}
+		return lastChannel;
+	}
+
+	/**
+	 * Read one line, without its line terminator
+	 *
+	 * @return The line, or null at the end of the input
+	 */
+	public String readLine() throws IOException {
+		if (skipLF) {
+			skipLF = false;
+			if (available() && chars.get(chars.position()) == '\n') {
+				chars.get();
+			}
+		}
+		if (!available()) {
+			return null;
+		}
+		line.setLength(0);
+		char[] buf = chars.array();
+		do {
+			int start = chars.position();
+			int limit = chars.limit();
+			for (int i = start; i < limit; ++i) {
+				char c = buf[i];
+				if (c == '\n' || c == '\r') {
+					line.append(buf, start, i - start);
+					chars.position(i + 1);
+					skipLF = c == '\r';
+					return line.toString();
+				}
+			}
+			line.append(buf, start, limit - start);
+			chars.position(limit);
+		} while (available());
+		return line.toString();
+	}
+
+	/**
+	 * Read all remaining lines
+	 *
+	 * @param heap Heap to charge for the lines and the array, or null
+	 */
+	public String[] readLines(HeapUsage heap) throws IOException, HeapLimitException {
+		String[] lines = new String[16];
+		charge(heap, HeapUsage.arrayBytes(lines.length));
+		int n = 0;
+		for (String l = readLine(); l != null; l = readLine()) {
+			charge(heap, HeapUsage.stringBytes(l.length()));
+			if (n == lines.length) {
+				lines = Arrays.copyOf(lines, grow(heap, n));
+			}
+			lines[n++] = l;
+		}
+		return Arrays.copyOf(lines, n);
+	}
+
+	/**
+	 * Read all remaining input as whitespace-separated decimal integers
+	 *
+	 * @param heap Heap to charge for the array, or null
+	 * @throws NumberFormatException if the input contains anything else
+	 */
+	public long[] readInts(HeapUsage heap) throws IOException, HeapLimitException {
+		long[] result = new long[64];
+		charge(heap, HeapUsage.arrayBytes(result.length));
+		int n = 0;
+		skipLF = false;
+		char[] buf = chars.array();
+		while (skipWhitespace()) {
+			boolean negative = false;
+			if (buf[chars.position()] == '-') {
+				negative = true;
+				chars.get();
+			}
+			// accumulate negatively, so that Long.MIN_VALUE fits
+			long v = 0;
+			int digits = 0;
+			while (available()) {
+				char c = buf[chars.position()];
+				if (c < '0' || c > '9') {
+					break;
+				}
+				try {
+					v = Math.subtractExact(Math.multiplyExact(v, 10), c - '0');
+				} catch (ArithmeticException e) {
+					throw malformedInt(negative, digits, v);
+				}
+				++digits;
+				chars.get();
+			}
+			if (digits == 0 || (available() && !Character.isWhitespace(buf[chars.position()]))) {
+				throw malformedInt(negative, digits, v);
+			}
+			if (!negative) {
+				if (v == Long.MIN_VALUE) {
+					throw malformedInt(negative, digits, v);
+				}
+				v = -v;
+			}
+			if (n == result.length) {
+				result = Arrays.copyOf(result, grow(heap, n));
+			}
+			result[n++] = v;
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	private static void charge(HeapUsage heap, long bytes) throws HeapLimitException {
+		if (heap != null) {
+			heap.allocate(bytes);
+		}
+	}
+
+	/**
+	 * The new length for a full result array of the given length, after
+	 * charging the heap for the added slots
+	 */
+	private static int grow(HeapUsage heap, int length) throws HeapLimitException {
+		if (length > HeapUsage.MAX_ARRAY_SIZE / 2) {
+			throw new HeapLimitException("Too much input: more than " + length + " elements");
+		}
+		if (heap != null) {
+			heap.extend(HeapUsage.SLOT * length);
+		}
+		return length * 2;
+	}
+
+	/**
+	 * Error for the token that starts with the given sign and digits (v is the
+	 * negated value of the digits); takes the rest of the token from the input
+	 */
+	private NumberFormatException malformedInt(boolean negative, int digits, long v) throws IOException {
+		StringBuilder token = new StringBuilder(negative ? "-" : "");
+		if (digits > 0) {
+			token.append(Long.toUnsignedString(-v));
+		}
+		while (available() && !Character.isWhitespace(chars.get(chars.position()))) {
+			token.append(chars.get());
+		}
+		return new NumberFormatException("Not an integer in input: '" + token + "'");
+	}
+
+	/**
+	 * Skip whitespace; false if there is no more input afterwards
+	 */
+	private boolean skipWhitespace() throws IOException {
+		while (available()) {
+			if (!Character.isWhitespace(chars.get(chars.position()))) {
+				return true;
+			}
+			chars.get();
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+	/**
+	 * Whether there is decoded input, reading and decoding more if needed
+	 */
+	private boolean available() throws IOException {
+		if (chars.hasRemaining()) {
+			return true;
+		}
+		if (drained) {
+			return false;
+		}
+		chars.clear();
+		try {
+			while (chars.position() == 0) {
+				if (!eof) {
+					bytes.compact();
+					int n = in.read(bytes);
+					bytes.flip();
+					if (n < 0) {
+						eof = true;
+					}
+				}
+				CoderResult result = decoder.decode(bytes, chars, eof);
+				if (result.isError()) {
+					result.throwException();
+				}
+				if (eof && result.isUnderflow()) {
+					// all bytes decoded (otherwise, chars is full)
+					decoder.flush(chars);
+					drained = true;
+					break;
+				}
+			}
+		} finally {
+			chars.flip();
+		}
+		return chars.hasRemaining();
+	}
+}
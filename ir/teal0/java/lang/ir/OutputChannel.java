@@ -0,0 +1,197 @@
+package lang.ir;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered output of an interpreted program.
+ *
+ * Output is collected in a character buffer and only handed to the underlying
+ * stream when the buffer is full or on flush().  The interpreter flushes when
+ * the program ends and before it reads input, so that prompts are visible.
+ *
+ * Values write themselves into the channel (IRValue.writeTo()), so printing
+ * does not build intermediate strings.  As with PrintStream, write errors
+ * don't raise exceptions but are recorded, see checkError().
+ *
+ * A channel writes to a stream, to a file (toFile()) or to memory (capture()).
+ */
+public final class OutputChannel implements Flushable, Closeable {
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	private static final String MIN_LONG = Long.toString(Long.MIN_VALUE);
+
+	private final Writer out;
+	private final char[] buf;
+	private int len = 0;
+	private boolean error = false;
+
+	public OutputChannel(OutputStream out) {
+		this(new OutputStreamWriter(out), DEFAULT_CAPACITY);
+	}
+
+	public OutputChannel(Writer out, int capacity) {
+		if (capacity < 32) {
+			// must hold any long
+			capacity = 32;
+		}
+		this.out = out;
+		this.buf = new char[capacity];
+	}
+
+	/**
+	 * A channel that writes to the given file, replacing its contents
+	 */
+	public static OutputChannel toFile(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						       StandardOpenOption.TRUNCATE_EXISTING);
+		return new OutputChannel(Channels.newWriter(channel, Charset.defaultCharset().newEncoder(), DEFAULT_CAPACITY),
+					 DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * A channel that keeps all output in memory, see getCaptured()
+	 */
+	public static OutputChannel capture() {
+		return new OutputChannel(new CaptureWriter(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * All output that has been flushed, if this channel keeps its output in
+	 * memory; null otherwise.  This is the channel's own storage, not a copy.
+	 */
+	public CharSequence getCaptured() {
+		if (out instanceof CaptureWriter) {
+			return ((CaptureWriter) out).text;
+		}
+		return null;
+	}
+
+	public OutputChannel write(char c) {
+		if (len == buf.length) {
+			drain();
+		}
+		buf[len++] = c;
+		return this;
+	}
+
+	public OutputChannel write(String s) {
+		return write(s, 0, s.length());
+	}
+
+	public OutputChannel write(String s, int start, int end) {
+		while (start < end) {
+			if (len == buf.length) {
+				drain();
+			}
+			int n = Math.min(end - start, buf.length - len);
+			s.getChars(start, start + n, buf, len);
+			len += n;
+			start += n;
+		}
+		return this;
+	}
+
+	/**
+	 * Write a number in decimal
+	 */
+	public OutputChannel write(long v) {
+		if (v == Long.MIN_VALUE) {
+			return write(MIN_LONG);
+		}
+		if (buf.length - len < 20) {
+			drain();
+		}
+		if (v < 0) {
+			buf[len++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long rest = v / 10; rest != 0; rest /= 10) {
+			++digits;
+		}
+		int pos = len + digits;
+		len = pos;
+		do {
+			buf[--pos] = (char) ('0' + (v % 10));
+			v /= 10;
+		} while (v != 0);
+		return this;
+	}
+
+	public OutputChannel newline() {
+		return write(LINE_SEPARATOR);
+	}
+
+	/**
+	 * Hand all buffered output to the underlying stream
+	 */
+	@Override
+	public void flush() {
+		drain();
+		try {
+			out.flush();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+
+	/**
+	 * Flush, then close the underlying stream
+	 */
+	@Override
+	public void close() {
+		flush();
+		try {
+			out.close();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+
+	/**
+	 * Whether writing to the underlying stream failed
+	 */
+	public boolean checkError() {
+		return error;
+	}
+
+	private void drain() {
+		if (len == 0) {
+			return;
+		}
+		try {
+			out.write(buf, 0, len);
+		} catch (IOException e) {
+			error = true;
+		}
+		len = 0;
+	}
+
+	private static final class CaptureWriter extends Writer {
+		final StringBuilder text = new StringBuilder();
+
+		@Override
+		public void write(char[] cbuf, int off, int n) {
+			text.append(cbuf, off, n);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}